@@ -2,6 +2,7 @@ package ru.zudin.objectstore;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -25,6 +26,17 @@ public interface Batch extends Closeable {
      */
     long write(String guid, byte[] bytes) throws IOException;
 
+    /**
+     * Write several key/values to the file by single append.
+     * @return positions of key/values in file, in the same order
+     */
+    List<Long> write(List<String> guids, List<byte[]> values) throws IOException;
+
+    /**
+     * Force written data to the storage device
+     */
+    void sync() throws IOException;
+
     /**
      * Mark object on given position as deleted. If there is not object, nothing happens
      * @param pos position in file, returned by write(guid, bytes)
@@ -36,11 +48,24 @@ public interface Batch extends Closeable {
      */
     void delete(Set<String> guids) throws IOException;
 
+    /**
+     * Mark objects on given positions as deleted. Positions are sorted before, so file is touched in one forward pass.
+     * Positions without objects are ignored
+     * @param positions positions in file, returned by write(guid, bytes)
+     */
+    void delete(List<Long> positions) throws IOException;
+
     /**
      * Get value that corresponds to given position. Optional.empty() if nothing found
      */
     Optional<byte[]> get(long pos) throws IOException;
 
+    /**
+     * Get values that correspond to given positions. Positions should be sorted, so file is read in one forward pass.
+     * @return values in the same order, Optional.empty() if nothing found on position
+     */
+    List<Optional<byte[]>> get(List<Long> positions) throws IOException;
+
     /**
      * Get size of active objects in file (in bytes)
      */
@@ -51,6 +76,11 @@ public interface Batch extends Closeable {
      */
     long fileSize();
 
+    /**
+     * Check is proportion of deleted objects big enough to defragment file
+     */
+    boolean isDefragmentationNeeded();
+
     /**
      * Defragment file if precondition is met
      */
@@ -61,6 +91,23 @@ public interface Batch extends Closeable {
      */
     Map<String, Long> defragment() throws IOException;
 
+    /**
+     * Start defragmentation, which can be executed concurrently with reads and writes of file.
+     * Must be called when there are no concurrent writes
+     */
+    BatchDefragmentation startDefragmentation() throws IOException;
+
+    /**
+     * Restore positions of active objects and meta-information of file without its rewriting
+     * @return positions of active objects
+     */
+    Map<String, Long> restore() throws IOException;
+
+    /**
+     * Restore meta-information of file from known size of active objects, without reading of file
+     */
+    void restore(long validSize);
+
     /**
      * Create iterator over file entries
      */
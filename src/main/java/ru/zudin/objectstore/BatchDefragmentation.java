@@ -0,0 +1,31 @@
+package ru.zudin.objectstore;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Defragmentation of batch, which is split into steps, so the batch is available
+ * for reads and writes while active objects are copied to new file
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+public interface BatchDefragmentation {
+
+    /**
+     * Copy active objects to new file. Batch can be read and written concurrently.
+     */
+    void copy() throws IOException;
+
+    /**
+     * Copy objects written after start of defragmentation, mark objects deleted meanwhile and replace the file.
+     * Must be called when there is no concurrent access to the batch.
+     * @return positions of active objects in new file
+     */
+    Map<String, Long> finish() throws IOException;
+
+    /**
+     * Stop defragmentation and remove new file, batch file is not changed
+     */
+    void abort();
+}
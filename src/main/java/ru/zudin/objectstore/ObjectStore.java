@@ -3,6 +3,8 @@ package ru.zudin.objectstore;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -22,6 +24,26 @@ public interface ObjectStore {
      */
     String put(Serializable object) throws IOException;
 
+    /**
+     * Inserts multiple serializable objects to store.
+     * It should be more efficient for multiple objects because of less I/O operations.
+     *
+     * @param objects collection of serializable objects
+     * @return identifiers (guids) of these objects in store, in the same order
+     * @throws IOException if an I/O error occurs.
+     */
+    List<String> putAll(Collection<? extends Serializable> objects) throws IOException;
+
+    /**
+     * Inserts already serialized value to store, it is stored as is.
+     * Value can be retrieved by "getBytes" method, "get" method returns it as byte array.
+     *
+     * @param bytes serialized value
+     * @return identifier (guid) of this value in store
+     * @throws IOException if an I/O error occurs.
+     */
+    String putBytes(byte[] bytes) throws IOException;
+
     /**
      * Retrieves element from the store for given guid.
      *
@@ -31,6 +53,25 @@ public interface ObjectStore {
      */
     Optional<Object> get(String guid) throws IOException;
 
+    /**
+     * Retrieves value inserted by "putBytes" method.
+     *
+     * @param guid identifier of the value in store from "putBytes" method
+     * @return empty Optional if value is not found or Optional with stored bytes
+     * @throws IOException if an I/O error occurs or object was inserted by "put" method.
+     */
+    Optional<byte[]> getBytes(String guid) throws IOException;
+
+    /**
+     * Retrieves multiple elements from the store.
+     * It should be more efficient for multiple objects because of less I/O operations.
+     *
+     * @param guids collection of objects identifiers
+     * @return map from guid to stored value, guids which are not found are not included
+     * @throws IOException if an I/O error occurs.
+     */
+    Map<String, Object> getAll(Collection<String> guids) throws IOException;
+
     /**
      * Deletes a single object from store by its guid.
      * If guid is not found in store, nothing happens
@@ -0,0 +1,36 @@
+package ru.zudin.objectstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Codec of objects, which are kept in store. Id of serializer is stored before each object, so objects written
+ * by different serializers can be read by the same store, if all of them are known to it.
+ *
+ * Implementations must be thread-safe.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+public interface Serializer {
+
+    /**
+     * Id of serializer, it is stored with each object. Id 0 is used by default Java serialization,
+     * id 1 by Java serialization with class dictionary,
+     * id -84 (0xAC) is reserved, since objects written without id start with it,
+     * id -1 (0xFF) is reserved for values, which are put as bytes, and id -2 (0xFE) for compressed values.
+     */
+    byte getId();
+
+    /**
+     * Write object to given stream
+     */
+    void serialize(Serializable object, OutputStream out) throws IOException;
+
+    /**
+     * Read object from given stream, stream contains bytes of single object
+     */
+    Object deserialize(InputStream in) throws IOException;
+}
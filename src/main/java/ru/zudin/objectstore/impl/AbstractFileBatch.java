@@ -1,16 +1,11 @@
 package ru.zudin.objectstore.impl;
 
 import ru.zudin.objectstore.Batch;
+import ru.zudin.objectstore.BatchDefragmentation;
 import ru.zudin.objectstore.BatchIterator;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Optional;
-import java.util.Set;
+import java.io.*;
+import java.util.*;
 
 /**
  * Common file batch implementation
@@ -24,13 +19,21 @@ abstract class AbstractFileBatch implements Batch {
     private final double sizeLoadFactor;
     private final long fileSizeThreshold;
     protected final File file;
-    private long removedSize;
+    private final BatchHint hint;
+    private volatile long removedSize;
+    private boolean hintOnDisk;
+    private long hintedLength;
+    private volatile FileDefragmentation defragmentation;
 
     public AbstractFileBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
         this.name = name;
         this.fileSizeThreshold = fileSizeThreshold;
         this.file = new File(path + name);
+        this.hint = new BatchHint(new File(path + name + ".hint"));
         this.sizeLoadFactor = sizeLoadFactor;
+        this.hintOnDisk = true;
+        this.hintedLength = -1;
+        this.defragmentation = null;
     }
 
     @Override
@@ -39,20 +42,50 @@ abstract class AbstractFileBatch implements Batch {
     }
 
     /**
-     * Get object via setting the start position in iterator
+     * Write key/values one by one
+     */
+    @Override
+    public List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        List<Long> positions = new ArrayList<>(guids.size());
+        for (int i = 0; i < guids.size(); i++) {
+            positions.add(write(guids.get(i), values.get(i)));
+        }
+        return positions;
+    }
+
+    /**
+     * Get object via setting the start position in iterator. If entry on given position is
+     * marked as deleted, iterator jumps over it, so nothing is returned
      */
     @Override
     public Optional<byte[]> get(long pos) throws IOException {
+        return get(Collections.singletonList(pos)).get(0);
+    }
+
+    /**
+     * Get objects by single iterator, which is moved from one position to another
+     */
+    @Override
+    public List<Optional<byte[]>> get(List<Long> positions) throws IOException {
         //todo: check that position is valid
+        List<Optional<byte[]>> values = new ArrayList<>(positions.size());
         BatchIterator iterator = createIterator();
-        iterator.setStartPos(pos);
-        byte[] value = null;
-        if (iterator.hasNext()) {
-            iterator.next();
-            value = iterator.value();
+        try {
+            for (Long pos : positions) {
+                iterator.setStartPos(pos);
+                byte[] value = null;
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    if (iterator.pos() == pos) {
+                        value = iterator.value();
+                    }
+                }
+                values.add(Optional.ofNullable(value));
+            }
+        } finally {
+            iterator.close();
         }
-        iterator.close();
-        return Optional.ofNullable(value);
+        return values;
     }
 
     /**
@@ -64,11 +97,34 @@ abstract class AbstractFileBatch implements Batch {
         iterator.setStartPos(pos);
         if (iterator.hasNext()) {
             iterator.next();
-            iterator.remove();
+            if (iterator.pos() == pos) {
+                iterator.remove();
+            }
         }
         iterator.close();
     }
 
+    /**
+     * Mark objects deleted by single iterator, which is moved from one position to another
+     */
+    @Override
+    public void delete(List<Long> positions) throws IOException {
+        BatchIterator iterator = createIterator();
+        try {
+            for (Long pos : new TreeSet<>(positions)) {
+                iterator.setStartPos(pos);
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    if (iterator.pos() == pos) {
+                        iterator.remove();
+                    }
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
     /**
      * Mark objects deleted via iteration over file
      */
@@ -110,7 +166,8 @@ abstract class AbstractFileBatch implements Batch {
     /**
      * Defragment file if proportion of deleted size to total size is greater that fixed factor
      */
-    private boolean isDefragmentationNeeded() {
+    @Override
+    public boolean isDefragmentationNeeded() {
         double fileSize = (double) fileSize();
         if (fileSize < fileSizeThreshold * 0.1) {
             return false;
@@ -119,21 +176,208 @@ abstract class AbstractFileBatch implements Batch {
         return 1 - proportion >= sizeLoadFactor || (fileSize > fileSizeThreshold && 1 - validSize() != 0);
     }
 
+    /**
+     * Force defragmentation. All steps are executed one by one, so there must be no concurrent access to batch.
+     */
     @Override
     public Map<String, Long> defragment() throws IOException {
+        BatchDefragmentation defragmentation = startDefragmentation();
+        try {
+            defragmentation.copy();
+            return defragmentation.finish();
+        } catch (IOException | RuntimeException e) {
+            defragmentation.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Start defragmentation of file. Current length of file is remembered, entries after it are copied
+     * on finish. Positions of entries deleted after start are collected to mark them deleted in new file.
+     */
+    @Override
+    public BatchDefragmentation startDefragmentation() throws IOException {
+        if (defragmentation != null) {
+            throw new IllegalStateException("Defragmentation of '" + getName() + "' is already started");
+        }
         System.out.println("Defragmentation start for " + getName());
-        long start = System.currentTimeMillis();
-        Map<String, Long> positions = innerDefragment();
-        long elapsed = System.currentTimeMillis() - start;
-        System.out.println(String.format("Defragmentation finish for %s, took %d millis", getName(), elapsed));
-        removedSize = 0;
+        defragmentation = new FileDefragmentation(fileSize());
+        return defragmentation;
+    }
+
+    /**
+     * Restore positions of active entries from hint file. Only entries which were appended
+     * after hint was written are read from batch file. If there is no valid hint, whole file is read.
+     * Size of removed entries is computed as difference between file size and size of active entries
+     * with header of file.
+     *
+     * @return positions of 'active' entries
+     */
+    @Override
+    public Map<String, Long> restore() throws IOException {
+        Map<String, Long> positions = new HashMap<>();
+        long fileSize = fileSize();
+        long activeSize = dataStart();
+        long from = activeSize;
+        Optional<BatchHint.Content> content = hint.read(fileSize);
+        if (content.isPresent()) {
+            for (BatchHint.Entry entry : content.get().getEntries()) {
+                if (entry.isActive()) {
+                    positions.put(entry.getGuid(), entry.getPos());
+                    activeSize += entry.getSize();
+                }
+            }
+            from = content.get().getCoveredLength();
+        }
+        List<BatchHint.Entry> tail = readEntries(from);
+        for (BatchHint.Entry entry : tail) {
+            positions.put(entry.getGuid(), entry.getPos());
+            activeSize += entry.getSize();
+        }
+        removedSize = fileSize - activeSize;
+        hintOnDisk = content.isPresent();
+        hintedLength = content.isPresent() ? content.get().getCoveredLength() : -1;
         return positions;
     }
 
     /**
-     * Real implementation of defragmentation
+     * Restore size of removed entries from known size of active entries. Only header of hint is read,
+     * so existing hint is appended on close.
+     */
+    @Override
+    public void restore(long validSize) {
+        long fileSize = fileSize();
+        removedSize = fileSize - validSize;
+        Optional<Long> coveredLength = hint.coveredLength(fileSize);
+        hintOnDisk = coveredLength.isPresent();
+        hintedLength = coveredLength.orElse(-1L);
+    }
+
+    /**
+     * Write hint for current state of batch. If existing hint is still valid, only entries
+     * of file tail are appended to it. Otherwise, whole file is read to build new hint.
+     */
+    protected void writeHint() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long fileSize = fileSize();
+        if (hintOnDisk && hintedLength >= 0 && hintedLength <= fileSize && hint.exists()) {
+            if (hintedLength < fileSize) {
+                hint.append(fileSize, readEntries(hintedLength));
+                hintedLength = fileSize;
+            }
+        } else {
+            hint.write(fileSize, readEntries(dataStart()));
+            hintOnDisk = true;
+            hintedLength = fileSize;
+        }
+    }
+
+    /**
+     * Write hint for just defragmented file, entries are known from copying
+     */
+    private void writeHint(List<BatchHint.Entry> entries) throws IOException {
+        long fileSize = fileSize();
+        hint.write(fileSize, entries);
+        hintOnDisk = true;
+        hintedLength = fileSize;
+    }
+
+    /**
+     * Account entry of given size as removed. Must be called before entry is marked as deleted.
+     * If defragmentation is in progress, position is remembered to delete entry from new file too.
+     */
+    protected void removed(long pos, long entrySize) {
+        invalidateHint();
+        removedSize += entrySize;
+        FileDefragmentation current = defragmentation;
+        if (current != null) {
+            current.deleted.add(pos);
+        }
+    }
+
+    /**
+     * Hint can not describe deleted entries without rewriting, so it is removed on first delete
+     * and written again on close.
+     */
+    private void invalidateHint() {
+        if (hintOnDisk) {
+            hint.delete();
+            hintOnDisk = false;
+        }
+        hintedLength = -1;
+    }
+
+    /**
+     * Read active entries of file starting from given position
+     */
+    private List<BatchHint.Entry> readEntries(long from) throws IOException {
+        return readEntries(from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read active entries of file between given positions, values are not read
      */
-    protected abstract Map<String,Long> innerDefragment() throws FileNotFoundException, IOException;
+    protected List<BatchHint.Entry> readEntries(long from, long to) throws IOException {
+        List<BatchHint.Entry> entries = new ArrayList<>();
+        if (from >= Math.min(fileSize(), to)) {
+            return entries;
+        }
+        AbstractFileBatchIterator iterator = innerCreateIterator();
+        try {
+            iterator.setStartPos(from);
+            iterator.setEndPos(to);
+            while (iterator.hasNext()) {
+                String guid = iterator.next();
+                entries.add(new BatchHint.Entry(guid, iterator.pos(), (int) iterator.entrySize(), true));
+            }
+        } finally {
+            iterator.close();
+        }
+        return entries;
+    }
+
+    protected File getHintFile() {
+        return hint.getFile();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeHint();
+    }
+
+    /**
+     * Encode key/value to bytes of entry, as it is stored in file
+     */
+    protected abstract byte[] encode(String guid, byte[] bytes);
+
+    /**
+     * Close all opened descriptors of file, before it is replaced by defragmentation
+     */
+    protected abstract void closeFile() throws IOException;
+
+    /**
+     * Copy active entries before given length to new file, it is called by defragmentation while batch
+     * is still used. Entries are copied in file order, implementations may change the order.
+     */
+    protected void copyEntries(FileDefragmentation defragmentation, long length) throws IOException {
+        defragmentation.copy(dataStart(), length);
+    }
+
+    /**
+     * Position of the first entry in file, file may start with header
+     */
+    protected long dataStart() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Header of file, which is written to new file by defragmentation
+     */
+    protected byte[] fileHeader() {
+        return new byte[0];
+    }
 
     @Override
     public BatchIterator createIterator() throws IOException {
@@ -146,7 +390,7 @@ abstract class AbstractFileBatch implements Batch {
     /**
      * Real creation of iterator
      */
-    protected abstract BatchIterator innerCreateIterator();
+    protected abstract AbstractFileBatchIterator innerCreateIterator();
 
     @Override
     public boolean equals(Object o) {
@@ -176,6 +420,8 @@ abstract class AbstractFileBatch implements Batch {
         protected String guid;
         protected int seek;
         private long pos;
+        private long endPos;
+        private long entrySize;
         private byte[] value;
         private Optional<Boolean> hasNext;
         private boolean wasNext;
@@ -185,6 +431,7 @@ abstract class AbstractFileBatch implements Batch {
             this.randomAccessFile = null;
             this.seek = 0;
             this.pos = 0;
+            this.endPos = Long.MAX_VALUE;
             this.guid = null;
             this.hasNext = Optional.empty();
             wasNext = false;
@@ -198,8 +445,11 @@ abstract class AbstractFileBatch implements Batch {
             if (randomAccessFile == null) {
                 try {
                     randomAccessFile = new RandomAccessFile(file, "rw");
+                    randomAccessFile.seek(dataStart());
                 } catch (FileNotFoundException e) {
                     throw new IllegalStateException("File is not found: '" + file.getPath() + "");
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read file '" + file.getPath() + "");
                 }
             }
         }
@@ -213,7 +463,7 @@ abstract class AbstractFileBatch implements Batch {
         private boolean iterate() throws IOException {
             while (true) {
                 pos = nextPos(randomAccessFile, seek);
-                if (randomAccessFile.length() <= pos) {
+                if (Math.min(randomAccessFile.length(), endPos) <= pos) {
                     return false;
                 }
                 randomAccessFile.seek(pos);
@@ -221,6 +471,7 @@ abstract class AbstractFileBatch implements Batch {
                 if (this.guid == null || this.seek < 0) {
                     throw new IllegalStateException("Guid or seek is not initiated");
                 }
+                entrySize = nextPos(randomAccessFile, seek) - pos;
                 if (!isActive) {
                     continue;
                 }
@@ -309,8 +560,8 @@ abstract class AbstractFileBatch implements Batch {
             try {
                 long prev = randomAccessFile.getFilePointer();
                 randomAccessFile.seek(pos);
+                removed(pos, entrySize);
                 markDeleted(randomAccessFile);
-                removedSize += currentEntrySize(guid, seek);
                 randomAccessFile.seek(prev);
                 wasRemove = true;
             } catch (IOException e) {
@@ -323,11 +574,6 @@ abstract class AbstractFileBatch implements Batch {
          */
         protected abstract void markDeleted(RandomAccessFile randomAccessFile) throws IOException;
 
-        /**
-         * Updates a size of 'deleted' entries
-         */
-        protected abstract long currentEntrySize(String guid, int seek);
-
         /**
          * Returns value (saved object) of current entry. Might be called ONLY after 'next' method call.
          */
@@ -363,13 +609,32 @@ abstract class AbstractFileBatch implements Batch {
         }
 
         /**
-         * Sets start position for RandomAccessFile
+         * Returns size of current entry in bytes, including meta-information
+         */
+        public long entrySize() {
+            return entrySize;
+        }
+
+        /**
+         * Sets start position for RandomAccessFile. State of current entry is reset,
+         * so iteration continues from given position.
          * @throws IOException
          */
         @Override
         public void setStartPos(long pos) throws IOException {
             init();
             randomAccessFile.seek(pos);
+            this.seek = 0;
+            this.hasNext = Optional.empty();
+            this.value = null;
+            wasNext = false;
+        }
+
+        /**
+         * Sets position where iteration stops, entries after it are not read
+         */
+        public void setEndPos(long endPos) {
+            this.endPos = endPos;
         }
 
         @Override
@@ -381,4 +646,134 @@ abstract class AbstractFileBatch implements Batch {
 
     }
 
+    /**
+     * Defragmentation via copying of all active entries to new file. Entries are copied in two steps:
+     * first, entries before remembered length while batch is still used, and after that the rest of entries.
+     * Then new file replaces the old one. Entries, which were copied but deleted meanwhile, are marked
+     * as deleted in new file.
+     */
+    protected class FileDefragmentation implements BatchDefragmentation {
+        private final long startLength;
+        private final File newFile;
+        private final List<Long> deleted;
+        private final Map<Long, BatchHint.Entry> copied;
+        private long headerLength;
+        private long newFileLength;
+
+        FileDefragmentation(long startLength) {
+            this.startLength = startLength;
+            this.newFile = new File(file.getPath() + ".new");
+            this.deleted = Collections.synchronizedList(new ArrayList<>());
+            this.copied = new LinkedHashMap<>();
+            this.headerLength = 0;
+            this.newFileLength = 0;
+        }
+
+        @Override
+        public void copy() throws IOException {
+            newFile.delete();
+            byte[] header = fileHeader();
+            if (header.length > 0) {
+                try (OutputStream out = open()) {
+                    out.write(header);
+                }
+                headerLength = header.length;
+                newFileLength = header.length;
+            }
+            copyEntries(this, startLength);
+        }
+
+        /**
+         * Append active entries between given positions of file to the end of new file
+         */
+        protected void copy(long from, long to) throws IOException {
+            if (from >= to) {
+                return;
+            }
+            try (OutputStream out = open()) {
+                AbstractFileBatchIterator iterator = innerCreateIterator();
+                try {
+                    iterator.setStartPos(from);
+                    iterator.setEndPos(to);
+                    while (iterator.hasNext()) {
+                        String guid = iterator.next();
+                        append(out, iterator.pos(), guid, encode(guid, iterator.value()));
+                    }
+                } finally {
+                    iterator.close();
+                }
+            }
+        }
+
+        /**
+         * Open stream for appending to the end of new file
+         */
+        protected OutputStream open() throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(newFile, true));
+        }
+
+        /**
+         * Append encoded entry to new file
+         *
+         * @param out stream of new file
+         * @param oldPos position of entry in old file, negative for entries which are not active objects
+         * @param guid guid of entry
+         * @param entry bytes of entry
+         */
+        protected void append(OutputStream out, long oldPos, String guid, byte[] entry) throws IOException {
+            out.write(entry);
+            if (oldPos >= 0) {
+                copied.put(oldPos, new BatchHint.Entry(guid, newFileLength, entry.length, true));
+            }
+            newFileLength += entry.length;
+        }
+
+        @Override
+        public Map<String, Long> finish() throws IOException {
+            long start = System.currentTimeMillis();
+            copy(startLength, fileSize());
+            closeFile();
+            File tempOld = new File(file.getPath() + ".old");
+            file.renameTo(tempOld);
+            if (!newFile.exists()) {
+                newFile.createNewFile();
+            }
+            newFile.renameTo(file);
+            tempOld.delete();
+            defragmentation = null;
+            long activeSize = headerLength;
+            for (BatchHint.Entry entry : copied.values()) {
+                activeSize += entry.getSize();
+            }
+            removedSize = newFileLength - activeSize;
+            invalidateHint();
+            List<Long> newDeleted = new ArrayList<>();
+            synchronized (deleted) {
+                for (Long pos : deleted) {
+                    BatchHint.Entry entry = copied.remove(pos);
+                    if (entry != null) {
+                        newDeleted.add(entry.getPos());
+                    }
+                }
+            }
+            delete(newDeleted);
+            Map<String, Long> positions = new HashMap<>();
+            List<BatchHint.Entry> entries = new ArrayList<>(copied.values());
+            for (BatchHint.Entry entry : entries) {
+                positions.put(entry.getGuid(), entry.getPos());
+            }
+            writeHint(entries);
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println(String.format("Defragmentation finish for %s, took %d millis", getName(), elapsed));
+            return positions;
+        }
+
+        @Override
+        public void abort() {
+            if (defragmentation == this) {
+                defragmentation = null;
+            }
+            newFile.delete();
+        }
+    }
 }
@@ -5,9 +5,7 @@ import org.apache.commons.lang.StringUtils;
 import ru.zudin.objectstore.BatchIterator;
 
 import java.io.*;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Implementation of file batch that stores objects as strings.
@@ -27,17 +25,18 @@ import java.util.Map;
 class Base64Batch extends AbstractFileBatch {
 
     private PrintWriter printWriter;
+    private FileOutputStream outputStream;
 
     public Base64Batch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
         super(path, name, sizeLoadFactor, fileSizeThreshold);
         this.printWriter = null;
+        this.outputStream = null;
     }
 
     @Override
     public void close() throws IOException {
-        if (printWriter != null) {
-            printWriter.close();
-        }
+        closePrintWriter();
+        super.close();
     }
 
     /**
@@ -51,62 +50,89 @@ class Base64Batch extends AbstractFileBatch {
     @Override
     public long write(String guid, byte[] bytes) throws IOException {
         PrintWriter writer = getPrintWriter();
-        return write(writer, guid, bytes);
+        long pos = fileSize();
+        write(writer, guid, bytes);
+        flush(writer);
+        return pos;
+    }
+
+    /**
+     * Write given key/values to batch file, writer is flushed once after all of them
+     *
+     * @return start positions of entries in file
+     * @throws IOException
+     */
+    @Override
+    public List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        PrintWriter writer = getPrintWriter();
+        long pos = fileSize();
+        List<Long> positions = new ArrayList<>(guids.size());
+        for (int i = 0; i < guids.size(); i++) {
+            positions.add(pos);
+            pos += write(writer, guids.get(i), values.get(i));
+        }
+        flush(writer);
+        return positions;
     }
 
     /**
-     * Write given key/value to given batch file
+     * Write given key/value to given batch file. Writer is not flushed.
      *
      * @param guid guid of object
      * @param bytes object to be stored
-     * @return start position of entry in file
-     * @throws IOException
+     * @return size of written entry in bytes
      */
     private long write(PrintWriter writer, String guid, byte[] bytes) {
+        String entry = toEntry(guid, bytes);
+        writer.print(entry);
+        return entry.length();
+    }
+
+    /**
+     * Encode given key/value to entry: header line and line with encoded value
+     */
+    private String toEntry(String guid, byte[] bytes) {
         String encoded = Base64.getEncoder().encodeToString(bytes);
-        long pos = fileSize();
-        writer.println("1 " + guid + Base64BatchIterator.DIVISOR + encoded.length());
-        writer.println(encoded);
+        String header = "1 " + guid + Base64BatchIterator.DIVISOR + encoded.length();
+        return header + System.lineSeparator() + encoded + System.lineSeparator();
+    }
+
+    @Override
+    protected byte[] encode(String guid, byte[] bytes) {
+        return toEntry(guid, bytes).getBytes();
+    }
+
+    private void flush(PrintWriter writer) throws IOException {
         writer.flush();
-        return pos;
+        if (writer.checkError()) {
+            throw new IOException("Cannot write to file '" + getName() + "'");
+        }
     }
 
     @Override
-    protected BatchIterator innerCreateIterator() {
+    public void sync() throws IOException {
+        if (printWriter != null) {
+            flush(printWriter);
+            outputStream.getFD().sync();
+        }
+    }
+
+    @Override
+    protected AbstractFileBatchIterator innerCreateIterator() {
         return new Base64BatchIterator();
     }
 
-    /**
-     * Implementation of file defragmentation via copying of all active entries to new file.
-     * Since iterator returns only 'active' entries, we iterate over old file and save
-     * all given entries into new file. After that we rename new file to old name and
-     * remove old file.
-     *
-     * @return positions of 'active' entries in new file
-     * @throws IOException
-     */
     @Override
-    protected Map<String, Long> innerDefragment() throws IOException {
-        Map<String, Long> positions = new HashMap<>();
-        File newFile = new File(file.getName() + ".new");
-        PrintWriter clearWriter = new PrintWriter(newFile);
-        BatchIterator oldIterator = createIterator();
-        while (oldIterator.hasNext()) {
-            long pos = newFile.length();
-            String guid = oldIterator.next();
-            byte[] bytes = oldIterator.value();
-            write(clearWriter, guid, bytes);
-            positions.put(guid, pos);
-        }
-        File tempOld = new File(file.getPath() + ".old");
-        file.renameTo(tempOld);
-        newFile.renameTo(file);
-        tempOld.delete();
+    protected void closeFile() {
+        closePrintWriter();
+    }
+
+    private void closePrintWriter() {
         if (printWriter != null) {
             printWriter.close();
             printWriter = null;
+            outputStream = null;
         }
-        return positions;
     }
 
     private PrintWriter getPrintWriter() throws IOException {
@@ -122,7 +148,8 @@ class Base64Batch extends AbstractFileBatch {
                 throw new IOException("Cannot create file '" + getName() + "'");
             }
         }
-        return new PrintWriter(new FileOutputStream(file, true));
+        outputStream = new FileOutputStream(file, true);
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream)));
     }
 
     /**
@@ -179,14 +206,6 @@ class Base64Batch extends AbstractFileBatch {
             randomAccessFile.writeBytes("0");
         }
 
-        /**
-         * Compute the current entry size
-         */
-        @Override
-        protected long currentEntrySize(String guid, int seek) {
-            return seek + guid.length() + 3 + String.valueOf(seek).length();
-        }
-
         /**
          * Read value from current entry. In Base64 case, value is placed on new line.
          *
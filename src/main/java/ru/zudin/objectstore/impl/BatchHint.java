@@ -0,0 +1,215 @@
+package ru.zudin.objectstore.impl;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Sidecar 'hint' file of batch. It keeps compact index of batch entries, so index of the store
+ * can be restored without reading (or rewriting) of whole batch file.
+ *
+ * File contains of header:
+ * - magic number
+ * - version
+ * - covered length (size of batch file, which is described by hint)
+ *
+ * and of records, one per entry:
+ * - state (active/deleted)
+ * - guid
+ * - start position of entry in batch file
+ * - size of entry in bytes
+ *
+ * Entries, which were appended to batch after hint was written, are not described by hint
+ * (they are placed after covered length), so they have to be read from batch file itself.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class BatchHint {
+
+    private static final int MAGIC = 0x484e5431;
+    private static final byte VERSION = 1;
+    private static final int COVERED_LENGTH_OFFSET = 5;
+
+    private final File file;
+
+    BatchHint(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    /**
+     * Read hint file. Empty optional is returned if there is no hint, hint is damaged
+     * or it describes more data than batch file has (so it is related to another file).
+     *
+     * @param fileLength current length of batch file
+     */
+    Optional<Content> read(long fileLength) {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return Optional.empty();
+            }
+            long coveredLength = in.readLong();
+            if (coveredLength < 0 || coveredLength > fileLength) {
+                return Optional.empty();
+            }
+            List<Entry> entries = new ArrayList<>();
+            while (true) {
+                int state = in.read();
+                if (state < 0) {
+                    break;
+                }
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readInt(), state == 1);
+                if (entry.getPos() + entry.getSize() > coveredLength) {
+                    //entry was appended to hint, but covered length was not updated
+                    continue;
+                }
+                entries.add(entry);
+            }
+            return Optional.of(new Content(coveredLength, entries));
+        } catch (IOException e) {
+            System.out.println(String.format("Found damaged hint '%s', ignore it", file.getName()));
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Read covered length from header of hint file. Empty optional is returned if there is no hint,
+     * it is damaged or it describes more data than batch file has.
+     *
+     * @param fileLength current length of batch file
+     */
+    Optional<Long> coveredLength(long fileLength) {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return Optional.empty();
+            }
+            long coveredLength = in.readLong();
+            if (coveredLength < 0 || coveredLength > fileLength) {
+                return Optional.empty();
+            }
+            return Optional.of(coveredLength);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Rewrite hint file with given entries. New hint is written to temporary file and
+     * renamed after that, so there is always consistent hint or no hint at all.
+     */
+    void write(long coveredLength, List<Entry> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(coveredLength);
+            for (Entry entry : entries) {
+                writeEntry(out, entry);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot write hint '" + file.getName() + "'");
+            }
+        }
+    }
+
+    /**
+     * Append entries of batch tail to existing hint. Covered length is updated after
+     * entries are written, so partially written tail is ignored on read.
+     */
+    void append(long coveredLength, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        for (Entry entry : entries) {
+            writeEntry(out, entry);
+        }
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            accessFile.seek(accessFile.length());
+            accessFile.write(buffer.toByteArray());
+            accessFile.seek(COVERED_LENGTH_OFFSET);
+            accessFile.writeLong(coveredLength);
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(entry.isActive() ? 1 : 0);
+        out.writeUTF(entry.getGuid());
+        out.writeLong(entry.getPos());
+        out.writeInt(entry.getSize());
+    }
+
+    /**
+     * Content of hint file
+     */
+    static class Content {
+        private final long coveredLength;
+        private final List<Entry> entries;
+
+        Content(long coveredLength, List<Entry> entries) {
+            this.coveredLength = coveredLength;
+            this.entries = entries;
+        }
+
+        long getCoveredLength() {
+            return coveredLength;
+        }
+
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * Description of single batch entry
+     */
+    static class Entry {
+        private final String guid;
+        private final long pos;
+        private final int size;
+        private final boolean active;
+
+        Entry(String guid, long pos, int size, boolean active) {
+            this.guid = guid;
+            this.pos = pos;
+            this.size = size;
+            this.active = active;
+        }
+
+        String getGuid() {
+            return guid;
+        }
+
+        long getPos() {
+            return pos;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        boolean isActive() {
+            return active;
+        }
+    }
+}
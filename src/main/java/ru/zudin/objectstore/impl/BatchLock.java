@@ -0,0 +1,64 @@
+package ru.zudin.objectstore.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock of single batch. There are three levels of access:
+ * - read (get of object), it is blocked only by exclusive access
+ * - write (append or mark as deleted), only one writer at time, but readers are not blocked,
+ * since written entries are never moved while the file is not rewritten
+ * - exclusive (defragmentation, close), it blocks everybody
+ *
+ * Counter of changes is incremented when exclusive access is taken and released, so reader can check
+ * that no positions were changed after it read them without lock.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class BatchLock {
+
+    private final ReentrantLock mutation;
+    private final ReentrantReadWriteLock structure;
+    private final AtomicLong changes;
+
+    /**
+     * @param changes counter of changes, it can be shared by locks of several batches
+     */
+    BatchLock(AtomicLong changes) {
+        this.mutation = new ReentrantLock();
+        this.structure = new ReentrantReadWriteLock();
+        this.changes = changes;
+    }
+
+    void lockRead() {
+        structure.readLock().lock();
+    }
+
+    void unlockRead() {
+        structure.readLock().unlock();
+    }
+
+    void lockWrite() {
+        mutation.lock();
+        structure.readLock().lock();
+    }
+
+    void unlockWrite() {
+        structure.readLock().unlock();
+        mutation.unlock();
+    }
+
+    void lockExclusive() {
+        mutation.lock();
+        structure.writeLock().lock();
+        changes.incrementAndGet();
+    }
+
+    void unlockExclusive() {
+        changes.incrementAndGet();
+        structure.writeLock().unlock();
+        mutation.unlock();
+    }
+}
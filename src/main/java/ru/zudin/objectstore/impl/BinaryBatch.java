@@ -1,13 +1,12 @@
 package ru.zudin.objectstore.impl;
 
-import org.apache.commons.lang.BooleanUtils;
 import ru.zudin.objectstore.BatchIterator;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 /**
  * Implementation of file batch that stores objects as binary array.
@@ -19,19 +18,44 @@ import java.util.Map;
  * - object size
  * - object itself
  *
- * These elements are stored one by one in binary file.
+ * These elements are stored one by one in binary file. Exact layout is defined by {@link BinaryFormat}.
+ * Format of existing file is detected on open, and entries are appended in the same format. Defragmentation
+ * writes new file in format of batch, so old files are converted when they are defragmented.
+ *
+ * Batch keeps single FileChannel opened for its lifetime. Appends, gets and deletes use positional
+ * reads and writes of this channel, so there is no file open/close per operation. Channel is reopened
+ * after defragmentation, since file is replaced.
  *
  * @author sergey
  * @since 09.05.18
  */
 public class BinaryBatch extends AbstractFileBatch {
 
+    private static final int PREFETCH_SIZE = 512;
+    static final int WINDOW_SIZE = 1024 * 64;
+
+    private final BinaryFormat format;
+    private volatile BinaryFormat fileFormat;
+    private volatile FileChannel channel;
+    private volatile long writePos;
+
     public BinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
+        this(path, name, sizeLoadFactor, fileSizeThreshold, BinaryFormat.V1);
+    }
+
+    /**
+     * @param format format of new files
+     */
+    BinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold, BinaryFormat format) {
         super(path, name, sizeLoadFactor, fileSizeThreshold);
+        this.format = format;
+        this.fileFormat = null;
+        this.channel = null;
+        this.writePos = 0;
     }
 
     /**
-     * Write given key/value to batch file
+     * Write given key/value to the end of batch file
      *
      * @param guid guid of object
      * @param bytes object to be stored
@@ -40,76 +64,346 @@ public class BinaryBatch extends AbstractFileBatch {
      */
     @Override
     public long write(String guid, byte[] bytes) throws IOException {
-        RandomAccessFile accessFile = new RandomAccessFile(file, "rw");
-        long pos = file.length();
-        accessFile.seek(pos);
-        write(accessFile, guid, bytes);
-        accessFile.close();
-        return pos;
+        return write(Collections.singletonList(guid), Collections.singletonList(bytes)).get(0);
     }
 
     /**
-     * Write given key/value to given batch file
+     * Write given key/values to the end of batch file by single positional write
      *
-     * @param guid guid of object
-     * @param bytes object to be stored
-     * @return start position of entry in file
+     * @return start positions of entries in file
      * @throws IOException
      */
-    private void write(RandomAccessFile accessFile, String guid, byte[] bytes) throws IOException {
-        int keyLength = guid.length();
-        int valueLength = bytes.length;
-        accessFile.writeByte(1);
-        accessFile.writeInt(keyLength);
-        accessFile.writeBytes(guid);
-        accessFile.writeInt(valueLength);
-        accessFile.write(bytes);
+    @Override
+    public List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        FileChannel channel = getChannel(true);
+        BinaryFormat fileFormat = fileFormat();
+        long pos = writePos;
+        List<Long> positions = new ArrayList<>(guids.size());
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        if (pos == 0) {
+            entries.write(fileFormat.fileHeader());
+        }
+        for (int i = 0; i < guids.size(); i++) {
+            positions.add(pos + entries.size());
+            entries.write(fileFormat.encode(true, guids.get(i), values.get(i)));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(entries.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, pos + buffer.position());
+        }
+        writePos = pos + buffer.capacity();
+        return positions;
     }
 
     @Override
-    protected BatchIterator innerCreateIterator() {
-        return new BinaryBatchIterator();
+    public void sync() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen()) {
+            current.force(false);
+        }
+    }
+
+    /**
+     * Encode given key/value to entry of new file
+     */
+    @Override
+    protected byte[] encode(String guid, byte[] bytes) {
+        return format.encode(true, guid, bytes);
+    }
+
+    @Override
+    protected byte[] fileHeader() {
+        return format.fileHeader();
+    }
+
+    /**
+     * Entries start after header of file, empty file has no header yet
+     */
+    @Override
+    protected long dataStart() throws IOException {
+        if (file.length() == 0) {
+            return 0;
+        }
+        return fileFormat().fileHeader().length;
+    }
+
+    /**
+     * Format of new files
+     */
+    protected BinaryFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Format of current file. It is detected by first bytes of file, empty file gets format of batch.
+     */
+    protected BinaryFormat fileFormat() throws IOException {
+        BinaryFormat current = fileFormat;
+        if (current != null) {
+            return current;
+        }
+        if (file.length() == 0) {
+            return format;
+        }
+        synchronized (this) {
+            if (fileFormat == null) {
+                fileFormat = BinaryFormat.detect(read(0, BinaryFormat.DETECT_SIZE));
+            }
+            return fileFormat;
+        }
+    }
+
+    /**
+     * Get value of entry on given position. Nothing is returned if entry is marked as deleted.
+     */
+    @Override
+    public Optional<byte[]> get(long pos) throws IOException {
+        Optional<Entry> entry = readEntry(pos, true);
+        if (!entry.isPresent() || !entry.get().isActive()) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.get().getValue());
     }
 
     /**
-     * Implementation of file defragmentation via copying of all active entries to new file.
-     * Since iterator returns only 'active' entries, we iterate over old file and save
-     * all given entries into new file. After that we rename new file to old name and
-     * remove old file.
+     * Get values for sorted positions. Entries are read by windows, see {@link #readEntries(List, boolean)}.
+     */
+    @Override
+    public List<Optional<byte[]>> get(List<Long> positions) throws IOException {
+        List<Optional<byte[]>> values = new ArrayList<>(positions.size());
+        for (Optional<Entry> entry : readEntries(positions, true)) {
+            if (entry.isPresent() && entry.get().isActive()) {
+                values.add(Optional.of(entry.get().getValue()));
+            } else {
+                values.add(Optional.empty());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Mark entry on given position as deleted via rewriting of its first byte.
+     */
+    @Override
+    public void delete(long pos) throws IOException {
+        Optional<Entry> entry = readEntry(pos, false);
+        if (entry.isPresent() && entry.get().isActive()) {
+            removed(pos, entry.get().getSize());
+            getChannel(false).write(ByteBuffer.wrap(new byte[]{0}), pos);
+        }
+    }
+
+    /**
+     * Mark entries on given positions as deleted. Positions are sorted, so headers of entries are read
+     * by windows, and only first bytes of active entries are rewritten.
+     */
+    @Override
+    public void delete(List<Long> positions) throws IOException {
+        List<Long> sorted = new ArrayList<>(new TreeSet<>(positions));
+        List<Optional<Entry>> entries = readEntries(sorted, false);
+        FileChannel channel = getChannel(false);
+        for (int i = 0; i < sorted.size(); i++) {
+            Optional<Entry> entry = entries.get(i);
+            if (entry.isPresent() && entry.get().isActive()) {
+                removed(sorted.get(i), entry.get().getSize());
+                channel.write(ByteBuffer.wrap(new byte[]{0}), sorted.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read entries on sorted positions. File is read by windows of fixed size, so entries
+     * which are placed near each other are read by single positional read.
+     *
+     * @return entries in the same order, empty Optional if there is no entry on position
+     */
+    private List<Optional<Entry>> readEntries(List<Long> positions, boolean withValue) throws IOException {
+        List<Optional<Entry>> entries = new ArrayList<>(positions.size());
+        ByteBuffer window = null;
+        long windowStart = 0;
+        for (Long pos : positions) {
+            if (window == null || pos < windowStart
+                    || pos + BinaryFormat.MIN_HEADER_SIZE > windowStart + window.remaining()) {
+                window = read(pos, WINDOW_SIZE);
+                windowStart = pos;
+            }
+            ByteBuffer buffer = window.duplicate();
+            buffer.position(window.position() + (int) (pos - windowStart));
+            entries.add(readEntry(pos, buffer, withValue));
+        }
+        return entries;
+    }
+
+    /**
+     * Read entry on given position by small prefetch read, rest of big entry is read separately
      *
-     * @return positions of 'active' entries in new file
+     * @return entry or empty Optional if there is no entry on given position
+     */
+    protected Optional<Entry> readEntry(long pos, boolean withValue) throws IOException {
+        return readEntry(pos, read(pos, PREFETCH_SIZE), withValue);
+    }
+
+    /**
+     * Read entry on given position. Usually the whole entry is already in given buffer,
+     * since header and small values fit to prefetch buffer. Otherwise, rest of entry is read from file.
+     *
+     * @param pos start position of entry
+     * @param buffer bytes of file starting from position of entry
+     * @param withValue should value be read
+     * @return entry or empty Optional if there is no entry on given position
      * @throws IOException
      */
+    private Optional<Entry> readEntry(long pos, ByteBuffer buffer, boolean withValue) throws IOException {
+        BinaryFormat fileFormat = fileFormat();
+        BinaryFormat.Header header = fileFormat.parse(buffer.duplicate());
+        if (header == null) {
+            if (!buffer.hasRemaining()) {
+                return Optional.empty();
+            }
+            buffer = read(pos, Math.max(PREFETCH_SIZE, buffer.remaining()) * 2);
+            header = fileFormat.parse(buffer.duplicate());
+            if (header == null) {
+                throw new IOException("Unexpected end of file '" + getName() + "'");
+            }
+        }
+        buffer.position(buffer.position() + header.getSize());
+        int valueLength = header.getValueLength();
+        byte[] value = null;
+        if (withValue) {
+            value = new byte[valueLength];
+            int prefetched = Math.min(buffer.remaining(), valueLength);
+            buffer.get(value, 0, prefetched);
+            if (prefetched < valueLength) {
+                ByteBuffer rest = read(pos + header.getSize() + prefetched, valueLength - prefetched);
+                if (rest.remaining() < valueLength - prefetched) {
+                    throw new IOException("Unexpected end of file '" + getName() + "'");
+                }
+                rest.get(value, prefetched, valueLength - prefetched);
+            }
+            fileFormat.verify(header, value);
+        }
+        return Optional.of(new Entry(header.isActive(), header.getGuid(), header.getEntrySize(), value));
+    }
+
+    /**
+     * Read up to given number of bytes from given position
+     *
+     * @return buffer ready for reading, it contains less bytes if end of file is reached
+     */
+    protected ByteBuffer read(long pos, int size) throws IOException {
+        FileChannel channel = getChannel(false);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns opened channel of batch file, opens it if required
+     *
+     * @param create create file if it does not exist
+     */
+    protected FileChannel getChannel(boolean create) throws IOException {
+        FileChannel current = channel;
+        if (current == null || !current.isOpen()) {
+            synchronized (this) {
+                current = channel;
+                if (current == null || !current.isOpen()) {
+                    if (create) {
+                        current = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    } else {
+                        current = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    }
+                    writePos = current.size();
+                    channel = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns length of batch file, which is known from the channel without additional syscalls
+     */
+    protected long length() throws IOException {
+        getChannel(false);
+        return writePos;
+    }
+
+    /**
+     * Close channel of batch file, it will be reopened on next operation. Format is detected again,
+     * since file may be replaced.
+     */
+    protected synchronized void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        fileFormat = null;
+    }
+
     @Override
-    protected Map<String, Long> innerDefragment() throws IOException {
-        Map<String, Long> positions = new HashMap<>();
-        File newFile = new File(file.getName() + ".new");
-        RandomAccessFile newFileWriter = new RandomAccessFile(newFile, "rw");
-        BatchIterator oldIterator = createIterator();
-        while (oldIterator.hasNext()) {
-            long pos = newFileWriter.getFilePointer();
-            String guid = oldIterator.next();
-            byte[] bytes = oldIterator.value();
-            write(newFileWriter, guid, bytes);
-            positions.put(guid, pos);
-        }
-        newFileWriter.close();
-        File tempOld = new File(file.getPath() + ".old");
-        file.renameTo(tempOld);
-        newFile.renameTo(file);
-        tempOld.delete();
-        return positions;
+    protected AbstractFileBatchIterator innerCreateIterator() {
+        return new BinaryBatchIterator();
     }
 
+    @Override
+    protected void closeFile() throws IOException {
+        closeChannel();
+    }
+
+    /**
+     * Hint is written before channel is closed, since reading of file may reopen it
+     */
     @Override
     public void close() throws IOException {
+        super.close();
+        closeChannel();
+    }
 
+    /**
+     * Entry of binary batch
+     */
+    protected static class Entry {
+        private final boolean active;
+        private final String guid;
+        private final int size;
+        private final byte[] value;
+
+        Entry(boolean active, String guid, int size, byte[] value) {
+            this.active = active;
+            this.guid = guid;
+            this.size = size;
+            this.value = value;
+        }
+
+        boolean isActive() {
+            return active;
+        }
+
+        String getGuid() {
+            return guid;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        byte[] getValue() {
+            return value;
+        }
     }
 
     /**
      * Implementation of iterator over binary batch file
      */
     class BinaryBatchIterator extends AbstractFileBatchIterator {
+        private BinaryFormat.Header header;
 
         /**
          * Returns start position of next entry. In binary case, start position of next entry
@@ -127,8 +421,8 @@ public class BinaryBatch extends AbstractFileBatch {
         }
 
         /**
-         * Read state, guid and value size. State is first byte, guid is described
-         * by guid size next to state byte. Integer after guid identifies value size.
+         * Read header of entry: state, guid and value size. Header is read by single read of prefetch size,
+         * and file is positioned at start of value after that.
          *
          * @param randomAccessFile file with start position at current entry
          * @return is entry in 'active' state
@@ -136,13 +430,26 @@ public class BinaryBatch extends AbstractFileBatch {
          */
         @Override
         protected boolean readKeyAndGetStatus(RandomAccessFile randomAccessFile) throws IOException {
-            boolean isActive = BooleanUtils.toBoolean(randomAccessFile.read());
-            int keyLength = randomAccessFile.readInt();
-            byte[] key = new byte[keyLength];
-            randomAccessFile.read(key);
-            this.guid = new String(key);
-            this.seek = randomAccessFile.readInt();
-            return isActive;
+            BinaryFormat fileFormat = fileFormat();
+            long start = randomAccessFile.getFilePointer();
+            int size = PREFETCH_SIZE / 4;
+            while (true) {
+                byte[] bytes = new byte[size];
+                int read = Math.max(randomAccessFile.read(bytes), 0);
+                header = fileFormat.parse(ByteBuffer.wrap(bytes, 0, read));
+                if (header != null) {
+                    break;
+                }
+                if (read < size) {
+                    throw new IOException("Unexpected end of file '" + getName() + "'");
+                }
+                randomAccessFile.seek(start);
+                size *= 2;
+            }
+            randomAccessFile.seek(start + header.getSize());
+            this.guid = header.getGuid();
+            this.seek = header.getValueLength();
+            return header.isActive();
         }
 
         /**
@@ -158,16 +465,7 @@ public class BinaryBatch extends AbstractFileBatch {
         }
 
         /**
-         * Compute the current entry size
-         */
-        @Override
-        protected long currentEntrySize(String guid, int seek) {
-            return seek + String.valueOf(guid.length()).length() + guid.length() + 3 +
-                    String.valueOf(seek).length(); //todo: check
-        }
-
-        /**
-         * Read value from current entry.
+         * Read value from current entry and check it, if format has checksums
          *
          * @param randomAccessFile file with position at start of the saved object
          * @param seek size of value
@@ -177,7 +475,8 @@ public class BinaryBatch extends AbstractFileBatch {
         @Override
         protected byte[] readValue(RandomAccessFile randomAccessFile, int seek) throws IOException {
             byte[] bytes = new byte[seek];
-            randomAccessFile.read(bytes);
+            randomAccessFile.readFully(bytes);
+            fileFormat().verify(header, bytes);
             return bytes;
         }
 
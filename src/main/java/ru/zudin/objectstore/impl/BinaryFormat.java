@@ -0,0 +1,298 @@
+package ru.zudin.objectstore.impl;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Layout of entries in binary batch file. Entry always starts with status byte, so entry is marked
+ * as deleted by rewriting of single byte in any format.
+ *
+ * V1 - file has no header, entry contains of status, int size of guid, guid, int size of value and value.
+ * V2 - file starts with magic number and version. Entry contains of status, CRC32C checksum, guid, varint size
+ * of value and value. Guid in canonical UUID form is stored as 16 bytes (varint zero before them), other guids
+ * as varint size plus one and UTF-8 bytes. Checksum covers everything after it, so it is not changed when
+ * entry is deleted.
+ *
+ * Format of existing file is detected by its first bytes: V1 entry starts with status 0 or 1,
+ * which can not be the first byte of magic number.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+abstract class BinaryFormat {
+
+    static final BinaryFormat V1 = new V1Format();
+    static final BinaryFormat V2 = new V2Format();
+
+    /**
+     * Minimal size of entry header in any format
+     */
+    static final int MIN_HEADER_SIZE = 7;
+
+    /**
+     * Number of first bytes of file, which is enough to detect its format
+     */
+    static final int DETECT_SIZE = 5;
+
+    /**
+     * Detect format of file by its first bytes
+     *
+     * @param start first bytes of non-empty file
+     * @throws IOException if file has unknown version
+     */
+    static BinaryFormat detect(ByteBuffer start) throws IOException {
+        if (start.remaining() < 4 || start.getInt(start.position()) != V2Format.MAGIC) {
+            return V1;
+        }
+        if (start.remaining() < DETECT_SIZE || start.get(start.position() + 4) != V2Format.VERSION) {
+            throw new IOException("Unsupported version of batch file");
+        }
+        return V2;
+    }
+
+    /**
+     * Bytes at the start of file, before the first entry
+     */
+    abstract byte[] fileHeader();
+
+    /**
+     * Encode entry
+     */
+    abstract byte[] encode(boolean active, String guid, byte[] value);
+
+    /**
+     * Parse header of entry, position of buffer is moved to the start of value
+     *
+     * @param buffer bytes of file starting from entry
+     * @return header or null if buffer does not contain whole header
+     * @throws IOException if header is damaged
+     */
+    abstract Header parse(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Check that value is not damaged, format without checksums accepts any value
+     *
+     * @throws IOException if value is damaged
+     */
+    void verify(Header header, byte[] value) throws IOException {
+    }
+
+    /**
+     * Header of entry: everything before value
+     */
+    static class Header {
+        private final boolean active;
+        private final String guid;
+        private final int size;
+        private final int valueLength;
+        private final int checksum;
+        private final byte[] checked;
+
+        Header(boolean active, String guid, int size, int valueLength, int checksum, byte[] checked) {
+            this.active = active;
+            this.guid = guid;
+            this.size = size;
+            this.valueLength = valueLength;
+            this.checksum = checksum;
+            this.checked = checked;
+        }
+
+        boolean isActive() {
+            return active;
+        }
+
+        String getGuid() {
+            return guid;
+        }
+
+        /**
+         * Size of header in bytes
+         */
+        int getSize() {
+            return size;
+        }
+
+        int getValueLength() {
+            return valueLength;
+        }
+
+        /**
+         * Size of whole entry in bytes
+         */
+        int getEntrySize() {
+            return size + valueLength;
+        }
+    }
+
+    private static class V1Format extends BinaryFormat {
+
+        @Override
+        byte[] fileHeader() {
+            return new byte[0];
+        }
+
+        @Override
+        byte[] encode(boolean active, String guid, byte[] value) {
+            byte[] key = guid.getBytes();
+            ByteBuffer buffer = ByteBuffer.allocate(9 + key.length + value.length);
+            buffer.put((byte) (active ? 1 : 0));
+            buffer.putInt(key.length);
+            buffer.put(key);
+            buffer.putInt(value.length);
+            buffer.put(value);
+            return buffer.array();
+        }
+
+        @Override
+        Header parse(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < 5) {
+                return null;
+            }
+            boolean active = buffer.get() != 0;
+            int keyLength = buffer.getInt();
+            if (keyLength < 0) {
+                throw new IOException("Damaged entry header");
+            }
+            if (buffer.remaining() < keyLength + 4) {
+                return null;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            int valueLength = buffer.getInt();
+            if (valueLength < 0) {
+                throw new IOException("Damaged entry header");
+            }
+            return new Header(active, new String(key), 9 + keyLength, valueLength, 0, null);
+        }
+    }
+
+    private static class V2Format extends BinaryFormat {
+        private static final int MAGIC = 0x424E4F53;
+        private static final byte VERSION = 2;
+        private static final HashFunction CRC32C = Hashing.crc32c();
+
+        @Override
+        byte[] fileHeader() {
+            return ByteBuffer.allocate(DETECT_SIZE).putInt(MAGIC).put(VERSION).array();
+        }
+
+        @Override
+        byte[] encode(boolean active, String guid, byte[] value) {
+            boolean uuid = UuidIndex.isUuid(guid);
+            byte[] key = uuid ? null : guid.getBytes(StandardCharsets.UTF_8);
+            int keySize = uuid ? 1 + 16 : varintSize(key.length + 1) + key.length;
+            ByteBuffer buffer = ByteBuffer.allocate(5 + keySize + varintSize(value.length) + value.length);
+            buffer.put((byte) (active ? 1 : 0));
+            buffer.putInt(0);
+            if (uuid) {
+                UUID parsed = UUID.fromString(guid);
+                putVarint(buffer, 0);
+                buffer.putLong(parsed.getMostSignificantBits());
+                buffer.putLong(parsed.getLeastSignificantBits());
+            } else {
+                putVarint(buffer, key.length + 1);
+                buffer.put(key);
+            }
+            putVarint(buffer, value.length);
+            buffer.put(value);
+            byte[] bytes = buffer.array();
+            buffer.putInt(1, CRC32C.hashBytes(bytes, 5, bytes.length - 5).asInt());
+            return bytes;
+        }
+
+        @Override
+        Header parse(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            if (buffer.remaining() < MIN_HEADER_SIZE) {
+                return null;
+            }
+            boolean active = buffer.get() != 0;
+            int checksum = buffer.getInt();
+            int keyCode = getVarint(buffer);
+            if (keyCode == -1) {
+                return null;
+            }
+            String guid;
+            if (keyCode == 0) {
+                if (buffer.remaining() < 16) {
+                    return null;
+                }
+                guid = new UUID(buffer.getLong(), buffer.getLong()).toString();
+            } else {
+                if (buffer.remaining() < keyCode - 1) {
+                    return null;
+                }
+                byte[] key = new byte[keyCode - 1];
+                buffer.get(key);
+                guid = new String(key, StandardCharsets.UTF_8);
+            }
+            int valueLength = getVarint(buffer);
+            if (valueLength == -1) {
+                return null;
+            }
+            int size = buffer.position() - start;
+            byte[] checked = new byte[size - 5];
+            ByteBuffer header = buffer.duplicate();
+            header.position(start + 5);
+            header.get(checked);
+            return new Header(active, guid, size, valueLength, checksum, checked);
+        }
+
+        @Override
+        void verify(Header header, byte[] value) throws IOException {
+            int checksum = CRC32C.newHasher()
+                    .putBytes(header.checked)
+                    .putBytes(value)
+                    .hash()
+                    .asInt();
+            if (checksum != header.checksum) {
+                throw new IOException("Checksum mismatch for entry " + header.getGuid());
+            }
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) {
+                size++;
+            }
+            return size;
+        }
+
+        private static void putVarint(ByteBuffer buffer, int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        /**
+         * Read non-negative varint
+         *
+         * @return value or -1 if buffer ends before varint
+         * @throws IOException if varint is too long
+         */
+        private static int getVarint(ByteBuffer buffer) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("Damaged entry header");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Damaged entry header");
+        }
+    }
+}
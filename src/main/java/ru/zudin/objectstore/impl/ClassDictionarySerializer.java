@@ -0,0 +1,222 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Serializer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Java serialization, which keeps class descriptors in shared dictionary instead of each object.
+ * Object refers to descriptor by its number in dictionary, so small objects take less bytes,
+ * and descriptors are not parsed on each read. Stream header is not written too.
+ *
+ * Dictionary is a file of records: int size and descriptor written by Java serialization. Descriptor is stored
+ * as it is written by Java serialization, so objects of changed classes are read as usual. Records are only
+ * appended, record is forced to disk before the first object which refers to it is written. Record, which was
+ * not completely written, is dropped on load. Dictionary must be kept while there are objects written with it.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+public class ClassDictionarySerializer implements Serializer {
+
+    public static final byte ID = 1;
+
+    private final File file;
+    private final Map<ObjectStreamClass, Integer> ids;
+    private final Map<ByteBuffer, Integer> known;
+    private final List<byte[]> records;
+    private final Map<Integer, ObjectStreamClass> descriptors;
+    private long length;
+
+    /**
+     * @param file file of dictionary, it is created on the first write
+     */
+    public ClassDictionarySerializer(File file) {
+        this.file = file;
+        this.ids = new ConcurrentHashMap<>();
+        this.known = new ConcurrentHashMap<>();
+        this.records = new ArrayList<>();
+        this.descriptors = new ConcurrentHashMap<>();
+        this.length = 0;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void serialize(Serializable object, OutputStream out) throws IOException {
+        ObjectOutputStream stream = new DictionaryOutputStream(out);
+        stream.writeObject(object);
+        stream.flush();
+    }
+
+    @Override
+    public Object deserialize(InputStream in) throws IOException {
+        try {
+            return new DictionaryInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot deserialize object", e);
+        }
+    }
+
+    /**
+     * Number of descriptors in dictionary
+     */
+    synchronized int size() throws IOException {
+        refresh();
+        return records.size();
+    }
+
+    private int idOf(ObjectStreamClass desc) throws IOException {
+        Integer id = ids.get(desc);
+        return id != null ? id : register(desc);
+    }
+
+    /**
+     * Find descriptor in dictionary by its bytes, new descriptor is appended to file
+     */
+    private synchronized int register(ObjectStreamClass desc) throws IOException {
+        refresh();
+        byte[] record = encode(desc);
+        Integer id = known.get(ByteBuffer.wrap(record));
+        if (id == null) {
+            append(record);
+            id = add(record);
+        }
+        ids.put(desc, id);
+        return id;
+    }
+
+    private ObjectStreamClass descriptor(int id) throws IOException, ClassNotFoundException {
+        ObjectStreamClass desc = descriptors.get(id);
+        if (desc == null) {
+            byte[] record;
+            synchronized (this) {
+                if (id >= records.size()) {
+                    refresh();
+                }
+                if (id < 0 || id >= records.size()) {
+                    throw new IOException("Unknown class descriptor " + id + " in dictionary '" + file.getPath() + "'");
+                }
+                record = records.get(id);
+            }
+            desc = decode(record);
+            descriptors.put(id, desc);
+        }
+        return desc;
+    }
+
+    /**
+     * Read records appended to file since the last read. Incomplete record at the end of file is removed.
+     */
+    private void refresh() throws IOException {
+        if (!file.exists() || file.length() == length) {
+            return;
+        }
+        long valid = length;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.skipBytes((int) length);
+            while (true) {
+                int size = in.readInt();
+                if (size < 0) {
+                    break;
+                }
+                byte[] record = new byte[size];
+                in.readFully(record);
+                add(record);
+                valid += 4 + size;
+            }
+        } catch (EOFException e) {
+            // the last record is read
+        }
+        length = valid;
+        if (file.length() > length) {
+            System.out.println(String.format("Found incomplete record in dictionary '%s', remove it", file.getPath()));
+            try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+                accessFile.setLength(length);
+            }
+        }
+    }
+
+    private int add(byte[] record) {
+        records.add(record);
+        known.put(ByteBuffer.wrap(record), records.size() - 1);
+        return records.size() - 1;
+    }
+
+    private void append(byte[] record) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(ByteBuffer.allocate(4 + record.length).putInt(record.length).put(record).array());
+            out.getChannel().force(true);
+        }
+        length += 4 + record.length;
+    }
+
+    private static byte[] encode(ObjectStreamClass desc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(desc);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ObjectStreamClass decode(byte[] record) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            return (ObjectStreamClass) in.readObject();
+        }
+    }
+
+    private class DictionaryOutputStream extends ObjectOutputStream {
+
+        DictionaryOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            int id = idOf(desc);
+            while ((id & ~0x7F) != 0) {
+                writeByte((id & 0x7F) | 0x80);
+                id >>>= 7;
+            }
+            writeByte(id);
+        }
+    }
+
+    private class DictionaryInputStream extends ObjectInputStream {
+
+        DictionaryInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected void readStreamHeader() {
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int id = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift >= 32) {
+                    throw new StreamCorruptedException("Damaged class descriptor id");
+                }
+                byte b = readByte();
+                id |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return descriptor(id);
+                }
+            }
+        }
+    }
+}
@@ -1,69 +1,157 @@
 package ru.zudin.objectstore.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.apache.commons.collections4.ListUtils;
-import org.apache.commons.lang.SerializationUtils;
 import ru.zudin.objectstore.Batch;
+import ru.zudin.objectstore.BatchDefragmentation;
 import ru.zudin.objectstore.BatchIterator;
 import ru.zudin.objectstore.ObjectStore;
+import ru.zudin.objectstore.Serializer;
 
-import java.io.Closeable;
-import java.io.File;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Append-only object store based on physical files.
  *
  * The main part of store is files batches which contains all required data
  * about objects (object itself, its guid and state). There is also a index which keep
- * links from guid to file batch and position there. For now, index is in-memory, so it
- * is destroyed after stopping of application. After next initialization it is automatically built from
- * existing batches. This field is direction for future optimization.
+ * links from guid to file batch and position there. Index keeps UUID guids as primitives, batches
+ * are referenced there by ids, which are assigned when batch is added to the store. In-memory index
+ * (on heap or off-heap, see IndexType) is destroyed after stopping of application, and after next
+ * initialization it is built by scan of existing batches. Off-heap index keeps heap usage independent
+ * of number of objects. IndexType.PERSISTENT keeps index in memory-mapped files and changes it in place,
+ * so after proper close store is reopened without scan of batches.
  *
  * There is two possible ways of storing objects in files, they represented by BatchType class:
  * BASE_64 - this approach translates object into Base64 string and save it to the file.
  * When it is store objects in human-readable way, a I/O speed, hoverer, is not so good.
  * BINARY - this approach translates key/value into binary view.
  * This way is more space and I/O speed efficient, but it is hard to 'understand' a file.
+ * BINARY_V2 - binary files of the second format: UUID guids take 16 bytes, sizes are varints and each entry
+ * has checksum. Files of the first format are still read and written, they are converted by defragmentation.
+ * BINARY_MAPPED - the same files as BINARY, but objects are read from memory-mapped file.
+ * It is the fastest way to read objects, when files fit to page cache.
+ * SORTED - the same files as BINARY, but defragmentation sorts entries by guid and writes sparse index
+ * of them, so batch can find its objects without full index of store (see IndexType.SPARSE).
+ * SEGMENTED - batch is a log of immutable segments: delete appends tombstone instead of rewriting of entry,
+ * sealed segments are read from memory-mapped files, and defragmentation merges sealed segments.
  *
  * Deletion of object is not immediately removes it from the physical batch. Firstly, this object
  * is marked as 'deleted', so it became invisible for the store. After some time,
  * if preconditions are met, defragmentation of file batches is executed. This process is
- * physically remove 'removed' objects from files.
+ * physically remove 'removed' objects from files. Defragmentation is executed by background
+ * compactor thread, which picks batches with the biggest proportion of deleted objects. Active objects
+ * are copied while batch is still read and written, and only replacement of file blocks the batch.
  *
- * If there are became too much of objects, the store may decide to increase number of batches
- * and re-balance active objects between them.
+ * Object is put to its home batch, which is chosen by jump consistent hash of guid over batches ordered
+ * by number. If there are became too much of objects, the store may decide to increase number of batches
+ * and re-balance active objects between them: only objects which get new home are moved.
+ * Alternatively, object can be put to the less loaded batch (see Placement).
+ *
+ * Puts to the same batch are coalesced into groups, which are appended to file by single write.
+ * Whether written objects are forced to disk is defined by Durability policy.
+ *
+ * Objects are converted to bytes by Serializer, which is Java serialization by default. Id of serializer
+ * is written before each object, so store reads objects of all serializers, which are registered in it.
+ * Objects written before serializers were introduced have no id, they are read by Java serialization.
+ * Already serialized values can be put as bytes, they are stored as is with special id.
+ * Java serialization with class dictionary (see Builder.classDictionary()) keeps class descriptors
+ * in 'classes.dict' file next to batches, so they are not repeated in each object.
+ * Values bigger than compression threshold (see Builder.compression()) are compressed by Deflater
+ * and stored with special id, they are decompressed on read by any store.
+ *
+ * Values of recently read objects can be kept in memory by read cache (see Builder.readCache()). Cache is
+ * keyed by guid, so it is not changed when objects are moved by defragmentation or re-balance, and object
+ * is removed from cache when it is deleted. Cache keeps bytes, so each get returns new instance of object.
+ *
+ * Store is thread-safe. Index is a concurrent map, and each batch has its own lock, so puts and
+ * deletes on different batches are executed in parallel, and gets are blocked only by
+ * defragmentation of the same batch.
  *
  * Possible parameters of store are:
  * - initBatchSize (how many batches will be used by default if there are no existing
  * batches or if number of existing batches are less than given value)
  * - sizeLoadFactor (if proportion of size of deleted objects to total size is greater,
  * that this parameter, the defragmentation is executed)
- * - fileSizeThreshold (if size of file batch became bigger than given parameter, than
+ * - fileSizeThreshold (if size of active objects in batch became bigger than given parameter, than
  * re-balance of active objects in batches is executed)
  *
  * After first call of any method, 'scan()' method is executed. This method scans working
- * directory for existing batch files and re-build index from them. It is also called
- * force defragmentation of this batches to ensure correct meta-information in batch,
- * such as size of removed entities. This can take quite a long time on large files,
- * so this field is also a direction for future work.
+ * directory for existing batch files and re-build index from them. Each batch keeps a 'hint'
+ * file next to it (written on close and after defragmentation) with positions and sizes
+ * of its entries, so only entries appended after the hint was written are read from batch file.
+ * If there is no hint (e.g. application was stopped without close), whole batch is read, but not rewritten.
+ * Batches are scanned in parallel. To do it before the first request, 'open()' can be called.
  *
  * @author sergey
  * @since 07.05.18
  */
 public class FileSystemObjectStore implements ObjectStore, Closeable {
 
+    private static final Pattern BATCH_FILES = Pattern.compile("batch-\\d+\\.[^.]+"); //todo: support types
+    private static final Pattern ALL_FILES = Pattern.compile("batch-\\d+\\..+");
+    private static final Pattern SEGMENT_FILES = Pattern.compile("(batch-\\d+\\.[^.]+)\\.\\d+");
+    private static final String INDEX_FOLDER = "index";
+    private static final String BATCHES_META = "batches.meta";
+    private static final String CLASS_DICTIONARY = "classes.dict";
+    private static final int BATCHES_META_MAGIC = 0x42544331;
+    private static final byte NO_SERIALIZER_ID = (byte) 0xAC;
+    private static final byte BYTES_ID = (byte) 0xFF;
+    private static final byte DEFLATED_ID = (byte) 0xFE;
+    private static final int INVALIDATION_STRIPES = 1024;
+    private static final HashFunction GUID_HASH = Hashing.murmur3_128();
+    private static final String REBALANCE_STATE = "rebalance.state";
+    private static final int REBALANCE_STATE_MAGIC = 0x52424C32;
+    private static final long REBALANCE_STEP = 1024 * 1024;
+
     private final String folder;
     private final int initBatchSize;
     private final double sizeLoadFactor;
     private final long fileSizeThreshold;
     private final BatchType batchType;
+    private final Durability durability;
+    private final long syncIntervalMillis;
+    private final Serializer serializer;
+    private final Serializer[] serializers;
+    private final int compressionThreshold;
+    private final Placement placement;
+    private final Cache<String, byte[]> cache;
+    private final AtomicLongArray invalidations;
 
-    private Map<String, Position> index;
-    private List<Batch> batches;
+    private final Index index;
+    private final List<Batch> batches;
+    private volatile Batch[] snapshot;
+    private final List<Batch> batchIds;
+    private final Map<Batch, Integer> ids;
+    private final Map<Batch, BatchLock> locks;
+    private final AtomicLong exclusiveChanges;
+    private final Map<Batch, GroupCommitWriter> writers;
+    private final ReentrantLock rebalanceLock;
+    private volatile boolean initialized;
+    private ScheduledExecutorService syncService;
+    private ExecutorService compactionService;
+    private ExecutorService rebalanceService;
+    private final AtomicBoolean compactionScheduled;
+    private final List<Batch> pending;
+    private final List<Batch> retired;
+    private final Set<Batch> busy;
 
     public FileSystemObjectStore(String folder) {
         this(folder, BatchType.BINARY);
@@ -82,196 +170,1307 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
      * @param batchType type of storing objects in file
      * @param initBatchSize default number of batches
      * @param sizeLoadFactor maximum proportion of deleted objects size to total file size
-     * @param fileSizeThreshold maximum size of file in bytes
+     * @param fileSizeThreshold size of active objects in batch which triggers re-balance
      */
     public FileSystemObjectStore(String folder, BatchType batchType, int initBatchSize, double sizeLoadFactor, long fileSizeThreshold) {
-        if (folder == null || batchType == null || initBatchSize < 1 || sizeLoadFactor < 0.0 || sizeLoadFactor > 1.0
-                || fileSizeThreshold < 0) {
+        this(builder(folder)
+                .batchType(batchType)
+                .initBatchSize(initBatchSize)
+                .sizeLoadFactor(sizeLoadFactor)
+                .fileSizeThreshold(fileSizeThreshold));
+    }
+
+    private FileSystemObjectStore(Builder builder) {
+        String folder = builder.folder;
+        if (folder == null || builder.batchType == null || builder.initBatchSize < 1 || builder.sizeLoadFactor < 0.0
+                || builder.sizeLoadFactor > 1.0 || builder.fileSizeThreshold < 0 || builder.durability == null
+                || builder.syncIntervalMillis < 1 || builder.indexType == null || builder.serializer == null
+                || builder.readCacheBytes < 0 || builder.placement == null) {
             throw new IllegalArgumentException();
         }
+        if (builder.indexType == IndexType.SPARSE && builder.batchType != BatchType.SORTED) {
+            throw new IllegalArgumentException("Sparse index requires sorted batches");
+        }
         if (!folder.endsWith(File.separator)) {
             folder += File.separator;
         }
+        this.serializer = builder.classDictionary ? new ClassDictionarySerializer(new File(folder + CLASS_DICTIONARY))
+                : builder.serializer;
+        List<Serializer> registered = new ArrayList<>(builder.registered);
+        registered.add(builder.serializer);
+        this.serializers = registry(serializer, registered, new File(folder + CLASS_DICTIONARY));
+        this.compressionThreshold = builder.compressionThreshold;
+        this.placement = builder.placement;
+        this.cache = builder.readCacheBytes > 0
+                ? CacheBuilder.newBuilder()
+                .maximumWeight(builder.readCacheBytes)
+                .<String, byte[]>weigher((guid, value) -> guid.length() * 2 + value.length)
+                .recordStats()
+                .build()
+                : null;
+        this.invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
         this.folder = folder;
-        this.batchType = batchType;
-        this.index = new HashMap<>();
-        this.batches = new ArrayList<>();
-        this.initBatchSize = initBatchSize;
-        this.sizeLoadFactor = sizeLoadFactor;
-        this.fileSizeThreshold = fileSizeThreshold;
+        this.batchType = builder.batchType;
+        this.durability = builder.durability;
+        this.syncIntervalMillis = builder.syncIntervalMillis;
+        this.batches = new CopyOnWriteArrayList<>();
+        this.snapshot = new Batch[0];
+        this.batchIds = new CopyOnWriteArrayList<>();
+        this.ids = new ConcurrentHashMap<>();
+        this.locks = new ConcurrentHashMap<>();
+        this.exclusiveChanges = new AtomicLong();
+        this.retired = new CopyOnWriteArrayList<>();
+        if (builder.indexType == IndexType.OFF_HEAP) {
+            this.index = new UuidIndex(this::idOf, batchIds::get, i -> new OffHeapIndexSegment(1024));
+        } else if (builder.indexType == IndexType.PERSISTENT) {
+            this.index = MappedIndex.open(new File(folder + INDEX_FOLDER), this::idOf, batchIds::get);
+        } else if (builder.indexType == IndexType.SPARSE) {
+            this.index = new SparseIndex(batches, retired, this::lockOf, this::expectedBatch);
+        } else {
+            this.index = new UuidIndex(this::idOf, batchIds::get);
+        }
+        this.writers = new ConcurrentHashMap<>();
+        this.rebalanceLock = new ReentrantLock();
+        this.compactionScheduled = new AtomicBoolean(false);
+        this.pending = new CopyOnWriteArrayList<>();
+        this.busy = ConcurrentHashMap.newKeySet();
+        this.initBatchSize = builder.initBatchSize;
+        this.sizeLoadFactor = builder.sizeLoadFactor;
+        this.fileSizeThreshold = builder.fileSizeThreshold;
+    }
+
+    /**
+     * Table of serializers by id. Java serialization with and without class dictionary is always known,
+     * so objects written without id and objects of default serializers can be read.
+     *
+     * @throws IllegalArgumentException if id is reserved or two different serializers have the same id
+     */
+    private static Serializer[] registry(Serializer serializer, List<Serializer> registered, File dictionary) {
+        Serializer[] serializers = new Serializer[256];
+        List<Serializer> all = new ArrayList<>();
+        all.add(new JavaSerializer());
+        if (!(serializer instanceof ClassDictionarySerializer)) {
+            all.add(new ClassDictionarySerializer(dictionary));
+        }
+        all.add(serializer);
+        all.addAll(registered);
+        for (Serializer current : all) {
+            if (current.getId() == NO_SERIALIZER_ID || current.getId() == BYTES_ID || current.getId() == DEFLATED_ID) {
+                throw new IllegalArgumentException("Id " + current.getId() + " of serializer is reserved");
+            }
+            Serializer known = serializers[current.getId() & 0xFF];
+            if (known != null && !known.getClass().equals(current.getClass())) {
+                throw new IllegalArgumentException("Serializers " + known.getClass().getName() + " and "
+                        + current.getClass().getName() + " have the same id " + current.getId());
+            }
+            serializers[current.getId() & 0xFF] = current;
+        }
+        return serializers;
+    }
+
+    /**
+     * Create builder of store, which allows to set parameters that are not available in constructors
+     *
+     * @param folder folder where batches will be stored, must exist and be available to writing
+     */
+    public static Builder builder(String folder) {
+        return new Builder(folder);
+    }
+
+    /**
+     * Eagerly initialize store: scan existing batches and build index, so the first
+     * put/get does not have to wait for it.
+     *
+     * @return this store
+     * @throws IOException if an I/O error occurs.
+     */
+    public FileSystemObjectStore open() throws IOException {
+        lazyInit();
+        return this;
     }
 
     private void lazyInit() throws IOException {
-        if (batches.isEmpty()) {
-            scan();
-            createBatches(initBatchSize);
+        if (!initialized) {
+            synchronized (this) {
+                if (!initialized) {
+                    if (batches.isEmpty()) {
+                        if (!load()) {
+                            index.clear();
+                            scan();
+                        }
+                        createBatches(initBatchSize);
+                    }
+                    if (index instanceof MappedIndex) {
+                        ((MappedIndex) index).markDirty();
+                        getBatchesMeta().delete();
+                    }
+                    if (durability == Durability.INTERVAL) {
+                        syncService = Executors.newSingleThreadScheduledExecutor(r -> {
+                            Thread thread = new Thread(r, "object-store-sync");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                        syncService.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis,
+                                syncIntervalMillis, TimeUnit.MILLISECONDS);
+                    }
+                    compactionService = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "object-store-compactor");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    rebalanceService = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "object-store-rebalancer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    loadRebalanceState();
+                    compactionScheduled.set(false);
+                    initialized = true;
+                    batches.forEach(this::scheduleCompaction);
+                    scheduleMigration();
+                }
+            }
         }
     }
 
     @Override
     public String put(Serializable object) throws IOException {
         lazyInit();
+        return put(compress(serialize(object)));
+    }
+
+    /**
+     * Bytes are written after single byte of id, there is no serialization
+     */
+    @Override
+    public String putBytes(byte[] bytes) throws IOException {
+        lazyInit();
+        byte[] value = new byte[bytes.length + 1];
+        value[0] = BYTES_ID;
+        System.arraycopy(bytes, 0, value, 1, bytes.length);
+        return put(compress(value));
+    }
+
+    private String put(byte[] bytes) throws IOException {
         String guid = generateGuid();
-        byte[] bytes = SerializationUtils.serialize(object);
-        Batch batch = selectBatch(guid);
-        long pos = batch.write(guid, bytes);
-        index.put(guid, new Position(batch, pos));
+        Batch batch = append(guid, bytes);
         rebalanceIfNeeded(batch);
+        if (batchType == BatchType.SORTED) {
+            scheduleCompaction(batch);
+        }
         return guid;
     }
 
     /**
-     * Re-balance batches.
+     * Serializes objects in parallel, groups them by target batch and appends each group
+     * by single write. Need of re-balance is checked once for all objects.
+     */
+    @Override
+    public List<String> putAll(Collection<? extends Serializable> objects) throws IOException {
+        lazyInit();
+        List<byte[]> values;
+        try {
+            values = objects.parallelStream()
+                    .map(object -> {
+                        try {
+                            return compress(serialize(object));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<String> guids = new ArrayList<>(values.size());
+        Map<Batch, List<Integer>> grouped = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            String guid = generateGuid();
+            guids.add(guid);
+            grouped.computeIfAbsent(selectBatch(guid), b -> new ArrayList<>()).add(i);
+        }
+        for (Batch batch : grouped.keySet()) {
+            List<String> batchGuids = new ArrayList<>();
+            List<byte[]> batchValues = new ArrayList<>();
+            for (Integer i : grouped.get(batch)) {
+                batchGuids.add(guids.get(i));
+                batchValues.add(values.get(i));
+            }
+            try {
+                writerOf(batch).write(batchGuids, batchValues);
+            } catch (GroupCommitWriter.RetiredException e) {
+                for (int i = 0; i < batchGuids.size(); i++) {
+                    append(batchGuids.get(i), batchValues.get(i));
+                }
+            }
+        }
+        Optional<Batch> biggest = grouped.keySet().stream()
+                .max(Comparator.comparingLong(Batch::fileSize));
+        if (biggest.isPresent()) {
+            rebalanceIfNeeded(biggest.get());
+        }
+        if (batchType == BatchType.SORTED) {
+            grouped.keySet().forEach(this::scheduleCompaction);
+        }
+        return guids;
+    }
+
+    /**
+     * Force all written objects to disk
+     */
+    private void sync() throws IOException {
+        for (GroupCommitWriter writer : writers.values()) {
+            writer.sync();
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot sync batches: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write object to its batch as a part of group. If batch is retired by shrink after it was selected,
+     * another batch is selected.
      *
-     * If re-balance is required, than number of batches doubled, average size of active objects
-     * in batches are computed. Than active objects are moved from big files to new ones and marked
-     * as removed in old file. When relocation of objects are finished, non-required defragmentation
-     * is called for old files.
+     * @return batch where object is written
+     */
+    private Batch append(String guid, byte[] bytes) throws IOException {
+        while (true) {
+            Batch batch = selectBatch(guid);
+            try {
+                writerOf(batch).write(guid, bytes);
+                return batch;
+            } catch (GroupCommitWriter.RetiredException e) {
+                // batch is removed from the list of batches, so it is not selected again
+            }
+        }
+    }
+
+    /**
+     * Write object to batch under its lock and put the position to index
+     */
+    private long write(Batch batch, String guid, byte[] bytes) throws IOException {
+        BatchLock lock = lockOf(batch);
+        lock.lockWrite();
+        try {
+            long pos = batch.write(guid, bytes);
+            index.put(guid, new Position(batch, pos));
+            return pos;
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * Start re-balance of batches.
+     *
+     * Re-balance is required, when active objects of batch take more than threshold. Batches are added,
+     * so that active objects of all batches take half of threshold in average, but at least one batch is added.
+     * Home batch of object is chosen by jump consistent hash of guid, so with new batches home is changed only
+     * for objects which go to new batches: about 1/N of objects when one batch is added to N batches.
+     * New objects go to new batches at once, and old objects are moved by background migration
+     * (see {@link #migrate()}). With LEAST_LOADED placement new objects go to new batches since they are empty,
+     * and migration moves objects only from batches loaded more than average.
+     * Next re-balance is not started until migration is finished.
      *
      * @param batch to check is re-balance needed
      * @throws IOException
      */
     private void rebalanceIfNeeded(Batch batch) throws IOException {
-        if (batch.fileSize() > fileSizeThreshold) {
-            System.out.println(String.format("Start re-balance, init size=%d, make=%d", batches.size(), batches.size() * 2));
-            long start = System.currentTimeMillis();
-            List<Batch> created = createBatches(this.batches.size() * 2);
-            List<Batch> oldies = ListUtils.subtract(batches, created);
-            double averageSize = batches.stream()
+        if (batch.validSize() <= fileSizeThreshold || !pending.isEmpty() || !rebalanceLock.tryLock()) {
+            return;
+        }
+        try {
+            if (batch.validSize() <= fileSizeThreshold || !pending.isEmpty()) {
+                return;
+            }
+            long validSize = batches.stream()
                     .mapToLong(Batch::validSize)
-                    .average()
-                    .getAsDouble();
-            int i = 0;
-            int j = 0;
-            Batch from = oldies.get(i);
-            Batch to = created.get(j);
-            BatchIterator fromIterator = from.createIterator();
-            while (true) {
-                while (fromIterator.hasNext() && from.validSize() > averageSize && to.validSize() <= averageSize) {
-                    String guid = fromIterator.next();
-                    byte[] bytes = fromIterator.value();
-                    long newPos = to.write(guid, bytes);
-                    index.put(guid, new Position(to, newPos));
-                    fromIterator.remove();
+                    .sum();
+            int size = (int) Math.max(batches.size() + 1, 2 * validSize / Math.max(1, fileSizeThreshold) + 1);
+            System.out.println(String.format("Start re-balance, init size=%d, make=%d", batches.size(), size));
+            List<Batch> created = createBatches(size);
+            pending.addAll(ListUtils.subtract(batches, created));
+            saveRebalanceState();
+            scheduleMigration();
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Start shrink of batches.
+     *
+     * Shrink is required, when active objects of all batches take a quarter of threshold in average or less,
+     * e.g. after most of objects are deleted. Number of batches is chosen as for re-balance, so active objects
+     * take half of threshold in average, but it is not less than initial size of store. Batches with the highest
+     * numbers are retired: nothing is written to them anymore, and their objects are moved to remaining batches
+     * by background migration (see {@link #migrate()}). With HASH placement home is not changed for objects of
+     * remaining batches, since jump consistent hash moves objects only from removed buckets. Files of retired
+     * batch are deleted after it is migrated. Shrink is not started while re-balance or previous shrink is
+     * in progress.
+     *
+     * @throws IOException if state of migration cannot be saved
+     */
+    private void shrinkIfNeeded() throws IOException {
+        if (batches.size() <= initBatchSize || !pending.isEmpty() || !rebalanceLock.tryLock()) {
+            return;
+        }
+        try {
+            if (!pending.isEmpty()) {
+                return;
+            }
+            long validSize = batches.stream()
+                    .mapToLong(Batch::validSize)
+                    .sum();
+            int size = (int) Math.max(initBatchSize, 2 * validSize / Math.max(1, fileSizeThreshold) + 1);
+            if (size * 2 > batches.size()) {
+                return;
+            }
+            System.out.println(String.format("Start shrink, init size=%d, make=%d", batches.size(), size));
+            List<Batch> retiring = new ArrayList<>(batches.subList(size, batches.size()));
+            retired.addAll(retiring);
+            pending.addAll(retiring);
+            batches.removeAll(retiring);
+            updateSnapshot();
+            for (Batch batch : retiring) {
+                writerOf(batch).retire();
+            }
+            saveRebalanceState();
+            scheduleMigration();
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    private void scheduleMigration() {
+        ExecutorService service = rebalanceService;
+        if (service == null || pending.isEmpty()) {
+            return;
+        }
+        try {
+            service.execute(this::migrate);
+        } catch (RejectedExecutionException e) {
+            // store is closed, migration is resumed on next open
+        }
+    }
+
+    /**
+     * Background migration of re-balance and shrink: old batches are visited one by one, objects which are not
+     * at home are moved there and marked as removed in old file. All objects are moved from retired batches.
+     * Batch is moved by steps of limited size, and it is locked for writing only during a step, so objects
+     * of batch are served meanwhile: index points to the new place of object after it is written there.
+     * List of batches, which are not migrated yet, is saved in 'rebalance.state' file, so migration
+     * is resumed after restart of store. Migration is stopped when store is closed.
+     */
+    private void migrate() {
+        long start = System.currentTimeMillis();
+        long moved = 0;
+        while (initialized && !pending.isEmpty()) {
+            Batch from = pending.get(0);
+            try {
+                long count = migrate(from);
+                if (count < 0) {
+                    return;
                 }
-                if (from.validSize() <= averageSize) {
-                    i++;
-                    if (i < oldies.size()) {
-                        fromIterator.close();
-                        from = oldies.get(i);
-                        fromIterator = from.createIterator();
-                    } else {
-                        break;
+                moved += count;
+                List<Batch> remaining = new ArrayList<>(pending);
+                remaining.remove(from);
+                saveRebalanceState(remaining);
+                pending.remove(from);
+            } catch (IOException | RuntimeException e) {
+                System.out.println(String.format("Cannot re-balance batch %s: %s", from.getName(), e.getMessage()));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            scheduleCompaction(from);
+        }
+        if (pending.isEmpty()) {
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println(String.format("Finish re-balance, moved %d objects, took %d", moved, elapsed));
+        }
+    }
+
+    /**
+     * Move objects of batch to their home batches. Batch is not defragmented meanwhile,
+     * so iterator stays valid between steps. Retired batch is dropped, when it has no active objects.
+     *
+     * @return number of moved objects or -1 if store is closed before batch is migrated
+     */
+    private long migrate(Batch from) throws IOException, InterruptedException {
+        while (!busy.add(from)) {
+            if (!initialized) {
+                return -1;
+            }
+            Thread.sleep(10);
+        }
+        boolean retiring = retired.contains(from);
+        BatchLock lock = lockOf(from);
+        BatchIterator iterator = null;
+        long moved = 0;
+        try {
+            boolean done = false;
+            while (!done) {
+                if (!initialized) {
+                    return -1;
+                }
+                long step = 0;
+                Set<Batch> targets = new HashSet<>();
+                lock.lockWrite();
+                try {
+                    if (iterator == null && from.fileSize() > 0) {
+                        iterator = from.createIterator();
                     }
-                } else {
-                    j++;
-                    if (j < created.size()) {
-                        to = created.get(j);
-                    } else {
-                        break;
+                    double average = batches.stream()
+                            .mapToLong(Batch::validSize)
+                            .average()
+                            .orElse(0);
+                    while (iterator != null && step < REBALANCE_STEP && iterator.hasNext()) {
+                        if (placement == Placement.LEAST_LOADED && !retiring && from.validSize() <= average) {
+                            break;
+                        }
+                        String guid = iterator.next();
+                        Batch to = targetOf(guid, from);
+                        if (!to.equals(from)) {
+                            byte[] bytes = iterator.value();
+                            write(to, guid, bytes);
+                            iterator.remove();
+                            targets.add(to);
+                            step += bytes.length;
+                            moved++;
+                        }
                     }
+                    done = iterator == null || !iterator.hasNext()
+                            || placement == Placement.LEAST_LOADED && !retiring && from.validSize() <= average;
+                } finally {
+                    lock.unlockWrite();
+                }
+                if (durability != Durability.NONE) {
+                    for (Batch target : targets) {
+                        BatchLock targetLock = lockOf(target);
+                        targetLock.lockRead();
+                        try {
+                            target.sync();
+                        } finally {
+                            targetLock.unlockRead();
+                        }
+                    }
+                }
+                if (done && retiring) {
+                    if (iterator != null) {
+                        iterator.close();
+                        iterator = null;
+                    }
+                    done = drop(from);
                 }
             }
-            fromIterator.close();
-            long elapsed = System.currentTimeMillis() - start;
-            System.out.println(String.format("Finish re-balance, took %d", elapsed));
-            for (Batch old : oldies) {
-                defragmentIfNeeded(old);
+            return moved;
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+            busy.remove(from);
+        }
+    }
+
+    /**
+     * Delete files of retired batch, if all its objects are moved. Writes of objects, which were appended
+     * before batch was retired, are finished under write lock of batch, so batch is checked under exclusive lock.
+     *
+     * @return was batch dropped
+     */
+    private boolean drop(Batch batch) throws IOException {
+        BatchLock lock = lockOf(batch);
+        lock.lockExclusive();
+        try {
+            if (batch.fileSize() > 0) {
+                BatchIterator iterator = batch.createIterator();
+                try {
+                    if (iterator.hasNext()) {
+                        return false;
+                    }
+                } finally {
+                    iterator.close();
+                }
+            }
+            batch.close();
+            for (File file : getFiles(Pattern.compile(Pattern.quote(batch.getName()) + ".*"))) {
+                file.delete();
+            }
+            retired.remove(batch);
+        } finally {
+            lock.unlockExclusive();
+        }
+        System.out.println(String.format("Batch %s is dropped by shrink", batch.getName()));
+        return true;
+    }
+
+    /**
+     * Batch, where object should be moved by migration. For HASH placement it is home batch of object,
+     * for LEAST_LOADED placement it is the less loaded of two random batches, if it is less loaded than
+     * given batch. Objects of retired batch are always moved.
+     */
+    private Batch targetOf(String guid, Batch from) {
+        if (placement == Placement.HASH) {
+            return selectBatch(guid);
+        }
+        if (retired.contains(from)) {
+            return lessLoaded(snapshot);
+        }
+        List<Batch> others = ListUtils.subtract(batches, Collections.singletonList(from));
+        if (others.isEmpty()) {
+            return from;
+        }
+        Batch to = lessLoaded(others.toArray(new Batch[0]));
+        return to.validSize() < from.validSize() ? to : from;
+    }
+
+    /**
+     * Save names of batches, which are not migrated yet, and whether they are retired by shrink.
+     * File is removed when there are no such batches.
+     */
+    private void saveRebalanceState() throws IOException {
+        saveRebalanceState(new ArrayList<>(pending));
+    }
+
+    /**
+     * Save given batches as not migrated yet. Batch is removed from pending list after state is saved,
+     * so state of finished re-balance is already removed, when there are no pending batches.
+     */
+    private void saveRebalanceState(List<Batch> current) throws IOException {
+        File state = new File(folder + REBALANCE_STATE);
+        if (current.isEmpty()) {
+            state.delete();
+            return;
+        }
+        File tmp = new File(state.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(REBALANCE_STATE_MAGIC);
+            out.writeInt(current.size());
+            for (Batch batch : current) {
+                out.writeUTF(batch.getName());
+                out.writeBoolean(retired.contains(batch));
+            }
+        }
+        state.delete();
+        if (!tmp.renameTo(state)) {
+            throw new IOException("Cannot write state of re-balance '" + state.getPath() + "'");
+        }
+    }
+
+    /**
+     * Load batches, which were not migrated by re-balance or shrink before store was stopped.
+     * Retired batches are removed from the list of batches again, retired batch without file is already dropped.
+     */
+    private void loadRebalanceState() {
+        File state = new File(folder + REBALANCE_STATE);
+        pending.clear();
+        retired.clear();
+        if (!state.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(state)))) {
+            if (in.readInt() != REBALANCE_STATE_MAGIC) {
+                throw new IOException("Wrong magic number");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Batch batch = getBatch(in.readUTF());
+                if (!in.readBoolean()) {
+                    if (batches.contains(batch)) {
+                        pending.add(batches.get(batches.indexOf(batch)));
+                    }
+                } else if (ids.containsKey(batch) && batchIds.get(ids.get(batch)).fileSize() > 0) {
+                    batch = batchIds.get(ids.get(batch));
+                    retired.add(batch);
+                    batches.remove(batch);
+                    updateSnapshot();
+                    writerOf(batch).retire();
+                    pending.add(batch);
+                }
             }
+            createBatches(initBatchSize);
+            System.out.println(String.format("Resume re-balance of %d batches", pending.size()));
+        } catch (IOException e) {
+            System.out.println("Found damaged state of re-balance, migrate all batches");
+            for (Batch batch : retired) {
+                writers.remove(batch);
+                insertBatch(batch);
+            }
+            retired.clear();
+            pending.clear();
+            pending.addAll(batches);
         }
     }
 
     @Override
     public Optional<Object> get(String guid) throws IOException {
         lazyInit();
-        Position position = index.get(guid);
-        if (position == null) {
+        Optional<byte[]> optional = load(guid);
+        if (!optional.isPresent()) {
             return Optional.empty();
         }
-        Batch batch = position.getBatch();
-        Optional<byte[]> optional = batch.get(position.getPos());
+        return Optional.of(deserialize(optional.get()));
+    }
+
+    /**
+     * @throws IOException if object was not put as bytes
+     */
+    @Override
+    public Optional<byte[]> getBytes(String guid) throws IOException {
+        lazyInit();
+        Optional<byte[]> optional = load(guid);
         if (!optional.isPresent()) {
             return Optional.empty();
         }
-        return Optional.of(SerializationUtils.deserialize(optional.get()));
+        byte[] bytes = optional.get();
+        if (bytes.length == 0 || bytes[0] != BYTES_ID) {
+            throw new IOException("Object '" + guid + "' is not stored as bytes");
+        }
+        return Optional.of(Arrays.copyOfRange(bytes, 1, bytes.length));
+    }
+
+    /**
+     * Write id of serializer and serialized object
+     */
+    private byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(serializer.getId());
+        serializer.serialize(object, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress value, if it is bigger than threshold. Compressed value contains of special id, varint size of
+     * original value and deflated original value. Value is not changed if compression does not make it smaller.
+     */
+    private byte[] compress(byte[] value) {
+        if (compressionThreshold < 0 || value.length < compressionThreshold) {
+            return value;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2);
+        out.write(DEFLATED_ID);
+        int length = value.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= value.length) {
+                    return value;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Restore original value, if it is compressed
+     *
+     * @throws IOException if compressed value is damaged
+     */
+    private static byte[] decompress(byte[] value) throws IOException {
+        if (value.length == 0 || value[0] != DEFLATED_ID) {
+            return value;
+        }
+        int pos = 1;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= value.length || shift >= 32) {
+                throw new IOException("Damaged compressed object");
+            }
+            byte b = value[pos++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Damaged compressed object");
+        }
+        byte[] result = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value, pos, value.length - pos);
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int count = inflater.inflate(result, read, length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != length || !inflater.finished()) {
+                throw new IOException("Damaged compressed object");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged compressed object", e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    /**
+     * Read object by serializer of its id. Object without id starts with magic number of Java serialization.
+     * Value put as bytes is returned as byte array.
+     *
+     * @throws IOException if serializer of object is not registered
+     */
+    private Object deserialize(byte[] bytes) throws IOException {
+        bytes = decompress(bytes);
+        if (bytes.length > 0 && bytes[0] == NO_SERIALIZER_ID) {
+            return serializers[JavaSerializer.ID].deserialize(new ByteArrayInputStream(bytes));
+        }
+        if (bytes.length > 0 && bytes[0] == BYTES_ID) {
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        Serializer current = bytes.length > 0 ? serializers[bytes[0] & 0xFF] : null;
+        if (current == null) {
+            throw new IOException("Unknown serializer of object" + (bytes.length > 0 ? ", id " + bytes[0] : ""));
+        }
+        return current.deserialize(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+    }
+
+    /**
+     * Get decompressed value of object from read cache or from its batch
+     */
+    private Optional<byte[]> load(String guid) throws IOException {
+        if (cache != null) {
+            byte[] cached = cache.getIfPresent(guid);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+        }
+        long generation = generation(guid);
+        Optional<byte[]> optional = read(guid);
+        if (!optional.isPresent()) {
+            return Optional.empty();
+        }
+        byte[] bytes = decompress(optional.get());
+        cache(guid, bytes, generation);
+        return Optional.of(bytes);
+    }
+
+    /**
+     * Put value to read cache. Object could be deleted after it was read, so generation of guid is checked
+     * after value is cached: either deletion has changed it before, or it removes value from cache later.
+     *
+     * @param generation generation of guid taken before object was found in index
+     */
+    private void cache(String guid, byte[] bytes, long generation) {
+        if (cache != null) {
+            cache.put(guid, bytes);
+            if (generation(guid) != generation) {
+                cache.invalidate(guid);
+            }
+        }
+    }
+
+    /**
+     * Generation of guid is changed by each deletion of object, after it is removed from index.
+     * Guids share generations by stripes, so deletion of other object only prevents caching of value.
+     */
+    private long generation(String guid) {
+        return invalidations.get((guid.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES);
+    }
+
+    /**
+     * Remove deleted objects from read cache
+     */
+    private void invalidate(Collection<String> guids) {
+        if (cache != null) {
+            for (String guid : guids) {
+                invalidations.incrementAndGet((guid.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES);
+            }
+            cache.invalidateAll(guids);
+        }
+    }
+
+    /**
+     * Statistics of read cache: hits, misses and evictions. Statistics is empty if there is no read cache.
+     */
+    public CacheStats getCacheStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Read object bytes under read lock of its batch. Position is found once without lock: it is changed
+     * only under exclusive lock of batch, so it is looked up again only if some batch was locked exclusively
+     * meanwhile. Object moved to another batch by re-balance is already deleted in old batch,
+     * so index is checked again if object is not found.
+     */
+    private Optional<byte[]> read(String guid) throws IOException {
+        while (true) {
+            long changes = exclusiveChanges.get();
+            Position position = index.get(guid);
+            if (position == null) {
+                return Optional.empty();
+            }
+            Batch batch = position.getBatch();
+            BatchLock lock = lockOf(batch);
+            Optional<byte[]> optional;
+            lock.lockRead();
+            try {
+                if (exclusiveChanges.get() != changes) {
+                    continue;
+                }
+                optional = batch.get(position.getPos());
+            } finally {
+                lock.unlockRead();
+            }
+            if (!optional.isPresent()) {
+                Position current = index.get(guid);
+                if (current != null && !current.getBatch().equals(batch)) {
+                    continue;
+                }
+            }
+            return optional;
+        }
+    }
+
+    /**
+     * Objects found in read cache are not read. Resolves positions of others from index and groups them
+     * by batch. Each batch is read in one forward pass with sorted positions, batches are read in parallel.
+     * Objects which were moved to another batch meanwhile are read one by one after that.
+     */
+    @Override
+    public Map<String, Object> getAll(Collection<String> guids) throws IOException {
+        lazyInit();
+        Map<String, Object> found = new ConcurrentHashMap<>();
+        Map<Batch, List<String>> grouped = new HashMap<>();
+        for (String guid : new HashSet<>(guids)) {
+            byte[] cached = cache != null ? cache.getIfPresent(guid) : null;
+            if (cached != null) {
+                found.put(guid, deserialize(cached));
+                continue;
+            }
+            Position position = index.get(guid);
+            if (position != null) {
+                grouped.computeIfAbsent(position.getBatch(), b -> new ArrayList<>()).add(guid);
+            }
+        }
+        List<String> moved = Collections.synchronizedList(new ArrayList<>());
+        try {
+            Stream<Batch> stream = grouped.size() > 1 ? grouped.keySet().parallelStream() : grouped.keySet().stream();
+            stream.forEach(batch -> {
+                try {
+                    readAll(batch, grouped.get(batch), found, moved);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (String guid : moved) {
+            Optional<byte[]> optional = load(guid);
+            if (optional.isPresent()) {
+                found.put(guid, deserialize(optional.get()));
+            }
+        }
+        return new HashMap<>(found);
+    }
+
+    /**
+     * Read objects of single batch under its read lock, positions are sorted before reading.
+     * Read values are put to read cache.
+     *
+     * @param batch batch to read
+     * @param guids guids of objects in batch
+     * @param found map for found objects
+     * @param moved list for guids, which are not in the batch anymore
+     */
+    private void readAll(Batch batch, List<String> guids, Map<String, Object> found, List<String> moved)
+            throws IOException {
+        BatchLock lock = lockOf(batch);
+        lock.lockRead();
+        try {
+            List<Map.Entry<String, Long>> positions = new ArrayList<>();
+            Map<String, Long> generations = new HashMap<>();
+            for (String guid : guids) {
+                generations.put(guid, generation(guid));
+                Position current = index.get(guid);
+                if (current == null) {
+                    continue;
+                }
+                if (current.getBatch().equals(batch)) {
+                    positions.add(new AbstractMap.SimpleEntry<>(guid, current.getPos()));
+                } else {
+                    moved.add(guid);
+                }
+            }
+            positions.sort(Map.Entry.comparingByValue());
+            List<Optional<byte[]>> values = batch.get(positions.stream()
+                    .map(Map.Entry::getValue)
+                    .collect(Collectors.toList()));
+            for (int i = 0; i < positions.size(); i++) {
+                String guid = positions.get(i).getKey();
+                if (values.get(i).isPresent()) {
+                    byte[] bytes = decompress(values.get(i).get());
+                    cache(guid, bytes, generations.get(guid));
+                    found.put(guid, deserialize(bytes));
+                } else {
+                    moved.add(guid);
+                }
+            }
+        } finally {
+            lock.unlockRead();
+        }
     }
 
     @Override
     public void delete(String guid) throws IOException {
         lazyInit();
-        Position position = index.get(guid);
-        if (position != null) {
+        while (true) {
+            Position position = index.get(guid);
+            if (position == null) {
+                return;
+            }
             Batch batch = position.getBatch();
-            batch.delete(position.getPos());
-            index.remove(guid);
-            defragmentIfNeeded(batch);
+            BatchLock lock = lockOf(batch);
+            lock.lockWrite();
+            try {
+                Position current = index.get(guid);
+                if (current == null) {
+                    return;
+                }
+                if (!current.getBatch().equals(batch)) {
+                    continue;
+                }
+                batch.delete(current.getPos());
+                index.remove(guid, current);
+            } finally {
+                lock.unlockWrite();
+            }
+            invalidate(Collections.singletonList(guid));
+            scheduleCompaction(batch);
+            return;
         }
     }
 
     /**
-     * Call non-required defragmentation of batch. If defragmentation is executed,
-     * new positions are stored in index
+     * Schedule pass of compactor, if given batch has enough of deleted objects (or unsorted tail for
+     * sorted batch). Only one pass is waiting at time, it checks all batches anyway.
+     */
+    private void scheduleCompaction(Batch batch) {
+        ExecutorService service = compactionService;
+        if (service == null || !batch.isDefragmentationNeeded() || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            service.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            compactionScheduled.set(false);
+        }
+    }
+
+    /**
+     * Pass of compactor: defragment batches which need it, starting from batch with the biggest
+     * proportion of deleted objects. Pass is stopped if store is closed. Objects are deleted before
+     * defragmentation is needed, so need of shrink is checked after the pass.
+     */
+    private void compact() {
+        compactionScheduled.set(false);
+        List<Batch> candidates = batches.stream()
+                .filter(Batch::isDefragmentationNeeded)
+                .sorted(Comparator.comparingDouble(batch -> (double) batch.validSize() / batch.fileSize()))
+                .collect(Collectors.toList());
+        for (Batch batch : candidates) {
+            if (!initialized) {
+                return;
+            }
+            try {
+                defragment(batch);
+            } catch (IOException | RuntimeException e) {
+                System.out.println(String.format("Cannot defragment batch %s: %s", batch.getName(), e.getMessage()));
+            }
+        }
+        try {
+            shrinkIfNeeded();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot shrink batches: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Defragment batch and store new positions in index. Active objects are copied without lock of batch,
+     * so it is locked for writing only to start defragmentation, and exclusively to finish it.
+     * Batch, which is migrated by re-balance, is not defragmented.
      *
      * @param batch for which defragmentation is called
      * @return was defragmentation executed
      * @throws IOException
      */
-    private boolean defragmentIfNeeded(Batch batch) throws IOException {
-        Optional<Map<String, Long>> optMap = batch.defragmentIfNeeded();
-        if (optMap.isPresent()) {
-            Map<String, Long> map = optMap.get();
-            for (String guid : map.keySet()) {
-                Position position = index.get(guid);
-                Long newPos = map.get(guid);
-                if (position == null) {
-                    System.out.println(String.format("Wrong behaviour: guid #%s in file  (%s), but not in index",
-                            guid, batch.getName()));
-                    index.put(guid, new Position(batch, newPos));
-                } else {
-                    position.setPos(newPos);
+    private boolean defragment(Batch batch) throws IOException {
+        if (!busy.add(batch)) {
+            return false;
+        }
+        try {
+            return defragment(batch, lockOf(batch));
+        } finally {
+            busy.remove(batch);
+        }
+    }
+
+    private boolean defragment(Batch batch, BatchLock lock) throws IOException {
+        BatchDefragmentation defragmentation;
+        lock.lockWrite();
+        try {
+            if (!batch.isDefragmentationNeeded()) {
+                return false;
+            }
+            defragmentation = batch.startDefragmentation();
+        } finally {
+            lock.unlockWrite();
+        }
+        try {
+            defragmentation.copy();
+            lock.lockExclusive();
+            try {
+                Map<String, Long> map = defragmentation.finish();
+                for (String guid : map.keySet()) {
+                    Position position = new Position(batch, map.get(guid));
+                    if (index.put(guid, position) == null) {
+                        System.out.println(String.format("Wrong behaviour: guid #%s in file  (%s), but not in index",
+                                guid, batch.getName()));
+                    }
                 }
+            } finally {
+                lock.unlockExclusive();
             }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            defragmentation.abort();
+            throw e;
         }
-        return optMap.isPresent();
     }
 
     @Override
     public void delete(Collection<String> guids) throws IOException {
         lazyInit();
-        Map<Batch, Set<String>> grouped = guids.stream()
-                .distinct()
-                .filter(index::containsKey)
-                .collect(Collectors.groupingBy(g -> index.get(g).getBatch(), Collectors.toSet()));
+        Map<Batch, Set<String>> grouped = new HashMap<>();
+        for (String guid : new HashSet<>(guids)) {
+            Position position = index.get(guid);
+            if (position != null) {
+                grouped.computeIfAbsent(position.getBatch(), b -> new HashSet<>()).add(guid);
+            }
+        }
+        List<String> moved = new ArrayList<>();
         for (Batch batch : grouped.keySet()) {
-            Set<String> toDelete = grouped.get(batch);
-            batch.delete(toDelete);
-            toDelete.forEach(index::remove);
-            defragmentIfNeeded(batch);
+            BatchLock lock = lockOf(batch);
+            List<String> deleted = new ArrayList<>();
+            lock.lockWrite();
+            try {
+                List<Long> positions = new ArrayList<>();
+                for (String guid : grouped.get(batch)) {
+                    Position current = index.get(guid);
+                    if (current != null && current.getBatch().equals(batch)) {
+                        positions.add(current.getPos());
+                        deleted.add(guid);
+                    } else if (current != null) {
+                        moved.add(guid);
+                    }
+                }
+                if (!positions.isEmpty()) {
+                    batch.delete(positions);
+                    deleted.forEach(index::remove);
+                }
+            } finally {
+                lock.unlockWrite();
+            }
+            if (!deleted.isEmpty()) {
+                invalidate(deleted);
+                scheduleCompaction(batch);
+            }
+        }
+        for (String guid : moved) {
+            delete(guid);
         }
     }
 
+    /**
+     * Close all batches. Store can be used after that, batches are reopened on demand.
+     * Persistent index is saved as consistent, if store was used after previous close.
+     */
     @Override
-    public void close() throws IOException {
-        for (Batch batch : batches) {
-            batch.close();
+    public synchronized void close() throws IOException {
+        if (syncService != null) {
+            syncService.shutdown();
+            syncService = null;
+        }
+        boolean wasInitialized = initialized;
+        initialized = false;
+        if (compactionService != null) {
+            compactionService.shutdown();
+            try {
+                compactionService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactionService = null;
+        }
+        if (rebalanceService != null) {
+            rebalanceService.shutdown();
+            try {
+                rebalanceService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rebalanceService = null;
+        }
+        if (durability != Durability.NONE) {
+            sync();
+        }
+        for (Batch batch : ListUtils.union(batches, retired)) {
+            BatchLock lock = lockOf(batch);
+            lock.lockExclusive();
+            try {
+                batch.close();
+            } finally {
+                lock.unlockExclusive();
+            }
+        }
+        if (wasInitialized) {
+            index.flush();
+            if (index instanceof MappedIndex) {
+                saveBatches();
+            }
         }
     }
 
     /* START TESTING */
-    public void deleteFiles() {
-        File[] files = getFiles();
+    public void deleteFiles() throws IOException {
+        close();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        File[] files = getFiles(ALL_FILES);
         for (File file : files) {
             file.delete();
         }
+        pending.clear();
+        retired.clear();
+        new File(folder + REBALANCE_STATE).delete();
+        if (index instanceof MappedIndex) {
+            index.clear();
+            getBatchesMeta().delete();
+        }
         createBatches(initBatchSize);
     }
 
     protected List<Batch> getBatches() {
         return batches;
     }
+
+    Index getIndex() {
+        return index;
+    }
+
+    BatchLock getLock(Batch batch) {
+        return lockOf(batch);
+    }
+
+    Batch getHomeBatch(String guid) {
+        return selectBatch(guid);
+    }
+
+    boolean isRebalancing() {
+        return !pending.isEmpty();
+    }
     /* END TESTING */
 
+    /**
+     * Add batch to the store and assign id to it, if batch has no id yet
+     */
+    private void addBatch(Batch batch) {
+        registerBatch(batch);
+        insertBatch(batch);
+    }
+
+    /**
+     * Insert batch to the list of batches, so batches are ordered by their numbers.
+     * Home batch of object depends on this order.
+     */
+    private void insertBatch(Batch batch) {
+        int number = numberOf(batch);
+        int i = 0;
+        while (i < batches.size() && numberOf(batches.get(i)) < number) {
+            i++;
+        }
+        batches.add(i, batch);
+        updateSnapshot();
+    }
+
+    /**
+     * Copy list of batches to array, which is read on selection of batch for new object, so the list
+     * is not copied on each put. List is changed only under lock of re-balance or on open of store.
+     */
+    private void updateSnapshot() {
+        snapshot = batches.toArray(new Batch[0]);
+    }
+
+    private static int numberOf(Batch batch) {
+        String name = batch.getName();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+    }
+
+    /**
+     * Batch keeps its id, when it is dropped by shrink. If batch with the same name is created again,
+     * new instance takes the id.
+     */
+    private void registerBatch(Batch batch) {
+        synchronized (batchIds) {
+            Integer id = ids.get(batch);
+            if (id == null) {
+                batchIds.add(batch);
+                ids.put(batch, batchIds.size() - 1);
+            } else if (batchIds.get(id) != batch) {
+                batchIds.set(id, batch);
+            }
+        }
+    }
+
+    private int idOf(Batch batch) {
+        Integer id = ids.get(batch);
+        if (id == null) {
+            throw new IllegalStateException("Batch " + batch.getName() + " is not added to store");
+        }
+        return id;
+    }
+
+    private BatchLock lockOf(Batch batch) {
+        return locks.computeIfAbsent(batch, b -> new BatchLock(exclusiveChanges));
+    }
+
+    private GroupCommitWriter writerOf(Batch batch) {
+        return writers.computeIfAbsent(batch, b -> new GroupCommitWriter(b, lockOf(b), durability,
+                (guid, pos) -> index.put(guid, new Position(b, pos))));
+    }
+
+    /**
+     * Random UUID for new object. Collision is checked by index, but not by sparse index:
+     * it would read block of each batch on every put, and random UUIDs do not collide in practice.
+     */
     private String generateGuid() {
+        if (index instanceof SparseIndex) {
+            return UUID.randomUUID().toString();
+        }
         while (true) {
             String hex = UUID.randomUUID().toString();
             if (!index.containsKey(hex)) {
@@ -281,59 +1480,215 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
     }
 
     /**
-     * Selects batch for given guid. Now distribution of batches is evenly distributed.
-     *
-     * In future there might be selection of batches based on its size.
+     * Batch for new object. For HASH placement it is home batch of object: batches are ordered by their numbers,
+     * and index of batch is chosen by jump consistent hash of guid. For LEAST_LOADED placement it is the less
+     * loaded of two random batches.
      */
     private Batch selectBatch(String guid) {
-        return batches.get(Math.abs(guid.hashCode()) % batches.size());
+        Batch[] current = snapshot;
+        if (placement == Placement.LEAST_LOADED) {
+            return lessLoaded(current);
+        }
+        return current[Hashing.consistentHash(GUID_HASH.hashUnencodedChars(guid), current.length)];
+    }
+
+    /**
+     * Batch, where object is expected to be found: home batch for HASH placement
+     *
+     * @return batch or null if object can be placed to any batch
+     */
+    private Batch expectedBatch(String guid) {
+        if (placement != Placement.HASH || snapshot.length == 0) {
+            return null;
+        }
+        return selectBatch(guid);
+    }
+
+    /**
+     * Choose two different random batches and return one with smaller size of active objects
+     */
+    private static Batch lessLoaded(Batch[] batches) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(batches.length);
+        if (batches.length == 1) {
+            return batches[i];
+        }
+        int j = random.nextInt(batches.length - 1);
+        if (j >= i) {
+            j++;
+        }
+        return batches[i].validSize() <= batches[j].validSize() ? batches[i] : batches[j];
+    }
+
+    /**
+     * Load batches, which are described by persistent index, without reading of batch files.
+     * Batches are registered in the same order, so they get the same ids as in index.
+     *
+     * File with list of batches contains of id, name, length, modification time and size of active objects
+     * for each batch and order of batches in store. It is written on close together with index, so batches
+     * are loaded only if index is consistent and batch files were not changed after that.
+     *
+     * @return were batches loaded
+     */
+    private boolean load() {
+        if (!(index instanceof MappedIndex) || !((MappedIndex) index).isLoaded() || !batchIds.isEmpty()) {
+            return false;
+        }
+        File meta = getBatchesMeta();
+        if (!meta.exists()) {
+            return false;
+        }
+        List<Batch> loaded = new ArrayList<>();
+        List<Long> validSizes = new ArrayList<>();
+        List<Integer> order = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)))) {
+            if (in.readInt() != BATCHES_META_MAGIC) {
+                return false;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                File file = new File(folder + name);
+                if (file.length() != length || file.lastModified() != lastModified) {
+                    System.out.println(String.format("Batch %s was changed after index was written", name));
+                    return false;
+                }
+                loaded.add(getBatch(name));
+                validSizes.add(in.readLong());
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                order.add(in.readInt());
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            System.out.println("Found damaged list of batches, ignore index");
+            return false;
+        }
+        for (int i = 0; i < loaded.size(); i++) {
+            registerBatch(loaded.get(i));
+            loaded.get(i).restore(validSizes.get(i));
+        }
+        for (Integer id : order) {
+            insertBatch(batchIds.get(id));
+        }
+        System.out.println(String.format("Loaded index of %d objects in %d batches", index.size(), batches.size()));
+        return true;
+    }
+
+    /**
+     * Write list of batches for persistent index, see load()
+     */
+    private void saveBatches() throws IOException {
+        File meta = getBatchesMeta();
+        File tmp = new File(meta.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(BATCHES_META_MAGIC);
+            out.writeInt(batchIds.size());
+            for (Batch batch : batchIds) {
+                File file = new File(folder + batch.getName());
+                out.writeUTF(batch.getName());
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                out.writeLong(batch.validSize());
+            }
+            out.writeInt(batches.size());
+            for (Batch batch : batches) {
+                out.writeInt(idOf(batch));
+            }
+        }
+        meta.delete();
+        if (!tmp.renameTo(meta)) {
+            throw new IOException("Cannot write list of batches '" + meta.getPath() + "'");
+        }
+    }
+
+    private File getBatchesMeta() {
+        return new File(folder + INDEX_FOLDER + File.separator + BATCHES_META);
     }
 
     /**
      * Scan working directory for existing batches, enrich index for found files.
-     * For each found file force defragmentation is called.
+     * For each found file positions are restored from its hint and tail of file.
+     *
+     * Batches are restored in parallel on a bounded fork-join pool, each task builds its own
+     * map of positions, and they are merged to the index at the end. So the scan takes about
+     * as long as restore of the biggest batch.
      */
     private boolean scan() throws IOException {
         //todo: support new/old files
-        File[] files = getFiles();
-        if (files.length == 0) {
-            return false;
-        } else {
-            for (File file : files) {
-                String fileName = file.getName();
-                String extention = fileName.split("\\.")[1];
-                BatchType batchType = null;
-                for (BatchType type : BatchType.values()) {
-                    if (type.getExtention().equals(extention)) {
-                        batchType = type;
-                        break;
-                    }
-                }
-                if (batchType == null) {
-                    continue;
+        File[] files = getFiles(ALL_FILES);
+        long start = System.currentTimeMillis();
+        Map<Batch, File> found = new LinkedHashMap<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            Matcher segment = SEGMENT_FILES.matcher(fileName);
+            if (segment.matches()) {
+                fileName = segment.group(1);
+            } else if (!BATCH_FILES.matcher(fileName).matches()) {
+                continue;
+            }
+            String extention = fileName.split("\\.")[1];
+            BatchType batchType = null;
+            for (BatchType type : BatchType.values()) {
+                if (type.getExtention().equals(extention)) {
+                    batchType = type;
+                    break;
                 }
-                Batch batch = getBatch(fileName);
-                try {
-                    Map<String, Long> defragment = batch.defragment();
-                    for (String guid : defragment.keySet()) {
-                        index.put(guid, new Position(batch, defragment.get(guid)));
+            }
+            if (batchType == null) {
+                continue;
+            }
+            found.putIfAbsent(getBatch(fileName), new File(folder + fileName));
+        }
+        if (found.isEmpty()) {
+            return false;
+        }
+        int parallelism = Math.max(1, Math.min(found.size(), Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Map<Batch, ForkJoinTask<Optional<Map<String, Long>>>> tasks = new LinkedHashMap<>();
+            for (Batch batch : found.keySet()) {
+                tasks.put(batch, pool.submit(() -> restore(batch, found.get(batch))));
+            }
+            for (Batch batch : tasks.keySet()) {
+                Optional<Map<String, Long>> restored = tasks.get(batch).join();
+                addBatch(batch);
+                if (restored.isPresent()) {
+                    for (Map.Entry<String, Long> entry : restored.get().entrySet()) {
+                        index.put(entry.getKey(), new Position(batch, entry.getValue()));
                     }
-                } catch (IOException | IllegalStateException e) {
-                    System.out.println(String.format("Found damaged file '%s', archive it", fileName));
-                    file.renameTo(new File(file.getName() + ".broken"));
                 }
-                batches.add(batch);
             }
-            return true;
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("Scan of %d batches finish, took %d millis", found.size(), elapsed));
+        return true;
+    }
+
+    /**
+     * Restore positions of single batch. Damaged file is archived.
+     *
+     * @return positions of active objects or empty Optional if file is damaged
+     */
+    private Optional<Map<String, Long>> restore(Batch batch, File file) {
+        try {
+            return Optional.of(batch.restore());
+        } catch (IOException | IllegalStateException e) {
+            System.out.println(String.format("Found damaged file '%s', archive it", file.getName()));
+            file.renameTo(new File(file.getPath() + ".broken"));
+            return Optional.empty();
         }
     }
 
-    private File[] getFiles() {
+    private File[] getFiles(Pattern pattern) {
         File path = new File(folder);
         if (!path.isDirectory()) {
             throw new IllegalArgumentException("Folder is invalid");
         }
-        Pattern pattern = Pattern.compile("batch-\\d+\\..+"); //todo: support types
         return path.listFiles(pathname -> pattern.matcher(pathname.getName()).matches());
     }
 
@@ -345,11 +1700,12 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
             while (true) {
                 String name = "batch-" + i++ + "." + batchType.getExtention();
                 batch = getBatch(name);
-                if (!batches.contains(batch)) {
+                if (!batches.contains(batch) && !retired.contains(batch)) {
                     break;
                 }
             }
-            batches.add(batch);
+            writers.remove(batch);
+            addBatch(batch);
             created.add(batch);
         }
         return created;
@@ -361,6 +1717,14 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
             batch = new Base64Batch(folder, fileName, sizeLoadFactor, fileSizeThreshold);
         } else if (batchType == BatchType.BINARY) {
             batch = new BinaryBatch(folder, fileName, sizeLoadFactor, fileSizeThreshold);
+        } else if (batchType == BatchType.BINARY_V2) {
+            batch = new BinaryBatch(folder, fileName, sizeLoadFactor, fileSizeThreshold, BinaryFormat.V2);
+        } else if (batchType == BatchType.BINARY_MAPPED) {
+            batch = new MappedBinaryBatch(folder, fileName, sizeLoadFactor, fileSizeThreshold);
+        } else if (batchType == BatchType.SORTED) {
+            batch = new SortedBinaryBatch(folder, fileName, sizeLoadFactor, fileSizeThreshold);
+        } else if (batchType == BatchType.SEGMENTED) {
+            batch = new SegmentedBatch(folder, fileName, sizeLoadFactor, fileSizeThreshold);
         } else {
             throw new IllegalStateException("Unsupported type " + batchType);
         }
@@ -369,11 +1733,12 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
 
     /**
      * Helper class for index. For each guid it contains link to batch and position
-     * in this batch, where the objects is stored.
+     * in this batch, where the objects is stored. Position is immutable, so it is replaced
+     * in index atomically when object is moved.
      */
-    private class Position {
-        private Batch batch;
-        private long pos;
+    static class Position {
+        private final Batch batch;
+        private final long pos;
 
         public Position(Batch batch, long pos) {
             this.batch = batch;
@@ -388,13 +1753,209 @@ public class FileSystemObjectStore implements ObjectStore, Closeable {
             return pos;
         }
 
-        public void setPos(long pos) {
-            this.pos = pos;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Position)) return false;
+
+            Position position = (Position) o;
+
+            return pos == position.pos && batch.equals(position.batch);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * batch.hashCode() + (int) (pos ^ (pos >>> 32));
+        }
+    }
+
+    /**
+     * Policy of forcing written objects to disk:
+     * NONE - data is written to OS, but not forced, it is the fastest way
+     * INTERVAL - written batches are forced by background thread with fixed interval
+     * GROUP - each group of writes is forced before put returns
+     */
+    public enum Durability {
+        NONE,
+        INTERVAL,
+        GROUP
+    }
+
+    /**
+     * Placement of index:
+     * HEAP - index is kept in primitive arrays on heap
+     * OFF_HEAP - index is kept in direct buffers, it is not visited by garbage collector
+     * PERSISTENT - index is kept in memory-mapped files in 'index' sub-folder, it is not rebuilt on start
+     * if store was closed properly
+     * SPARSE - there is no index of objects, they are found by sparse indexes of SORTED batches,
+     * so memory does not depend on number of objects, but lookup reads block of home batch, and all batches
+     * are asked if object is not there
+     */
+    public enum IndexType {
+        HEAP,
+        OFF_HEAP,
+        PERSISTENT,
+        SPARSE
+    }
+
+    /**
+     * Choice of batch for new object:
+     * HASH - home batch of object is computed from its guid, re-balance moves objects to their new homes
+     * LEAST_LOADED - object is put to the less loaded of two random batches (by size of active objects),
+     * so batches are filled evenly even when objects are deleted unevenly. Re-balance moves objects from
+     * batches, which are loaded more than average, to less loaded ones.
+     */
+    public enum Placement {
+        HASH,
+        LEAST_LOADED
+    }
+
+    /**
+     * Builder of store. Parameters have the same defaults as in constructors.
+     */
+    public static class Builder {
+        private final String folder;
+        private BatchType batchType = BatchType.BINARY;
+        private int initBatchSize = 16;
+        private double sizeLoadFactor = 0.33;
+        private long fileSizeThreshold = 1024 * 1024 * 200;
+        private Durability durability = Durability.NONE;
+        private long syncIntervalMillis = 1000;
+        private IndexType indexType = IndexType.HEAP;
+        private Placement placement = Placement.HASH;
+        private Serializer serializer = new JavaSerializer();
+        private final List<Serializer> registered = new ArrayList<>();
+        private boolean classDictionary = false;
+        private int compressionThreshold = -1;
+        private long readCacheBytes = 0;
+
+        private Builder(String folder) {
+            this.folder = folder;
+        }
+
+        /**
+         * @param batchType type of storing objects in file
+         */
+        public Builder batchType(BatchType batchType) {
+            this.batchType = batchType;
+            return this;
+        }
+
+        /**
+         * @param initBatchSize default number of batches
+         */
+        public Builder initBatchSize(int initBatchSize) {
+            this.initBatchSize = initBatchSize;
+            return this;
+        }
+
+        /**
+         * @param sizeLoadFactor maximum proportion of deleted objects size to total file size
+         */
+        public Builder sizeLoadFactor(double sizeLoadFactor) {
+            this.sizeLoadFactor = sizeLoadFactor;
+            return this;
+        }
+
+        /**
+         * @param fileSizeThreshold size of active objects in batch which triggers re-balance
+         */
+        public Builder fileSizeThreshold(long fileSizeThreshold) {
+            this.fileSizeThreshold = fileSizeThreshold;
+            return this;
+        }
+
+        /**
+         * @param durability policy of forcing written objects to disk
+         */
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * @param syncIntervalMillis interval of forcing objects to disk for INTERVAL durability
+         */
+        public Builder syncInterval(long syncIntervalMillis) {
+            this.syncIntervalMillis = syncIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param placement choice of batch for new objects
+         */
+        public Builder placement(Placement placement) {
+            this.placement = placement;
+            return this;
+        }
+
+        /**
+         * @param indexType placement of index
+         */
+        public Builder indexType(IndexType indexType) {
+            this.indexType = indexType;
+            return this;
+        }
+
+        /**
+         * @param serializer serializer of new objects, it is also used to read objects
+         */
+        public Builder serializer(Serializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        /**
+         * Write new objects by Java serialization with class dictionary in folder of store,
+         * serializer given to builder is used only to read objects
+         */
+        public Builder classDictionary() {
+            this.classDictionary = true;
+            return this;
+        }
+
+        /**
+         * Compress values, which are not smaller than threshold. Compression is turned off by default.
+         *
+         * @param compressionThreshold minimal size of value in bytes to compress it, negative turns compression off
+         */
+        public Builder compression(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Keep values of recently read objects in memory, least recently used values are evicted.
+         * There is no read cache by default.
+         *
+         * @param readCacheBytes maximum total size of cached values in bytes, zero turns cache off
+         */
+        public Builder readCache(long readCacheBytes) {
+            this.readCacheBytes = readCacheBytes;
+            return this;
+        }
+
+        /**
+         * Add serializer, which is used only to read objects written by it before
+         *
+         * @param serializer serializer with unique id
+         */
+        public Builder registerSerializer(Serializer serializer) {
+            this.registered.add(Objects.requireNonNull(serializer));
+            return this;
+        }
+
+        public FileSystemObjectStore build() {
+            return new FileSystemObjectStore(this);
         }
     }
 
     public enum BatchType {
         BINARY("bnos"),
+        BINARY_V2("bnos"),
+        BINARY_MAPPED("bnos"),
+        SORTED("bnos"),
+        SEGMENTED("slog"),
         BASE_64("bsos");
 
         private String extention;
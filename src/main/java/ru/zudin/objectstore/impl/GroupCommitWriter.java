@@ -0,0 +1,207 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Write pipeline of single batch, which coalesces concurrent writes into groups.
+ *
+ * Each writer puts its request to the queue and waits for commit lock. The thread which gets the lock first
+ * becomes a leader: it takes all queued requests, appends them to batch by single write and, depending on
+ * durability policy, forces them to disk. Other writers wait for the lock meanwhile, and after they get it,
+ * their requests are usually already completed by the previous leader.
+ *
+ * Writer of batch, which is removed from store by shrink, is retired: nothing is appended after that,
+ * and writers get {@link RetiredException}, so they can choose another batch.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class GroupCommitWriter {
+
+    private final Batch batch;
+    private final BatchLock lock;
+    private final FileSystemObjectStore.Durability durability;
+    private final BiConsumer<String, Long> onWritten;
+    private final Queue<Request> queue;
+    private final ReentrantLock commitLock;
+    private volatile boolean dirty;
+    private volatile boolean retired;
+
+    /**
+     * @param batch batch to write to
+     * @param lock lock of the batch
+     * @param durability durability policy
+     * @param onWritten callback for written positions, it is called under write lock of the batch
+     */
+    GroupCommitWriter(Batch batch, BatchLock lock, FileSystemObjectStore.Durability durability,
+                      BiConsumer<String, Long> onWritten) {
+        this.batch = batch;
+        this.lock = lock;
+        this.durability = durability;
+        this.onWritten = onWritten;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.commitLock = new ReentrantLock();
+        this.dirty = false;
+        this.retired = false;
+    }
+
+    /**
+     * Write key/value as a part of group
+     *
+     * @return position of key/value in batch
+     * @throws IOException if write of group is failed
+     */
+    long write(String guid, byte[] bytes) throws IOException {
+        Request request = new Request(guid, bytes);
+        queue.add(request);
+        commitLock.lock();
+        try {
+            if (!request.done) {
+                commit();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (request.error instanceof RetiredException) {
+            throw (RetiredException) request.error;
+        }
+        if (request.error != null) {
+            throw new IOException("Cannot write to batch '" + batch.getName() + "'", request.error);
+        }
+        return request.pos;
+    }
+
+    /**
+     * Write given key/values as single group without queueing
+     *
+     * @return positions of key/values in batch
+     */
+    List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        List<Long> positions = append(guids, values);
+        if (durability == FileSystemObjectStore.Durability.GROUP) {
+            forceSync();
+        }
+        return positions;
+    }
+
+    /**
+     * Stop appending to batch. Writes, which hold write lock of batch, are finished before that.
+     */
+    void retire() {
+        lock.lockWrite();
+        try {
+            retired = true;
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * Append key/values to batch under its write lock
+     *
+     * @throws RetiredException if writer is retired
+     */
+    private List<Long> append(List<String> guids, List<byte[]> values) throws IOException {
+        lock.lockWrite();
+        try {
+            if (retired) {
+                throw new RetiredException(batch.getName());
+            }
+            List<Long> positions = batch.write(guids, values);
+            for (int i = 0; i < guids.size(); i++) {
+                onWritten.accept(guids.get(i), positions.get(i));
+            }
+            dirty = true;
+            return positions;
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * Write all queued requests as single group
+     */
+    private void commit() {
+        List<Request> group = new ArrayList<>();
+        List<String> guids = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        Request request;
+        while ((request = queue.poll()) != null) {
+            group.add(request);
+            guids.add(request.guid);
+            values.add(request.bytes);
+        }
+        try {
+            List<Long> positions = append(guids, values);
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).pos = positions.get(i);
+            }
+            if (durability == FileSystemObjectStore.Durability.GROUP) {
+                forceSync();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Request failed : group) {
+                failed.error = e;
+            }
+        }
+        for (Request done : group) {
+            done.done = true;
+        }
+    }
+
+    /**
+     * Force written data of batch to disk if there are not synced writes
+     */
+    void sync() throws IOException {
+        if (dirty) {
+            forceSync();
+        }
+    }
+
+    /**
+     * Force written data of batch to disk. Dirty flag is not checked, since it can be already
+     * reset by concurrent sync which is not finished yet.
+     */
+    private void forceSync() throws IOException {
+        lock.lockRead();
+        try {
+            dirty = false;
+            batch.sync();
+        } finally {
+            lock.unlockRead();
+        }
+    }
+
+    /**
+     * Batch is removed from store, so nothing is written to it
+     */
+    static class RetiredException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RetiredException(String name) {
+            super("Batch '" + name + "' is retired");
+        }
+    }
+
+    private static class Request {
+        private final String guid;
+        private final byte[] bytes;
+        private long pos;
+        private Exception error;
+        private boolean done;
+
+        Request(String guid, byte[] bytes) {
+            this.guid = guid;
+            this.bytes = bytes;
+        }
+    }
+}
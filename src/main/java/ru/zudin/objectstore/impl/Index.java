@@ -0,0 +1,52 @@
+package ru.zudin.objectstore.impl;
+
+import java.io.IOException;
+
+/**
+ * Index of the store, it keeps link from guid to batch and position of object in this batch.
+ * Implementations must be thread-safe.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+interface Index {
+
+    /**
+     * @return position of object or null if there is no such guid
+     */
+    FileSystemObjectStore.Position get(String guid);
+
+    /**
+     * @return previous position of object or null if there was no such guid
+     */
+    FileSystemObjectStore.Position put(String guid, FileSystemObjectStore.Position position);
+
+    /**
+     * @return removed position of object or null if there was no such guid
+     */
+    FileSystemObjectStore.Position remove(String guid);
+
+    /**
+     * Remove guid only if it is linked to given position
+     *
+     * @return was guid removed
+     */
+    boolean remove(String guid, FileSystemObjectStore.Position position);
+
+    boolean containsKey(String guid);
+
+    /**
+     * Number of guids in index
+     */
+    long size();
+
+    /**
+     * Remove all guids from index
+     */
+    void clear();
+
+    /**
+     * Write index to its storage, so it can be loaded later. Nothing happens for in-memory index
+     */
+    void flush() throws IOException;
+}
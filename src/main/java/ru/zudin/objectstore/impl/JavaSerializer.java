@@ -0,0 +1,37 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Serializer;
+
+import java.io.*;
+
+/**
+ * Default serializer, which uses Java serialization
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+public class JavaSerializer implements Serializer {
+
+    public static final byte ID = 0;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void serialize(Serializable object, OutputStream out) throws IOException {
+        ObjectOutputStream stream = new ObjectOutputStream(out);
+        stream.writeObject(object);
+        stream.flush();
+    }
+
+    @Override
+    public Object deserialize(InputStream in) throws IOException {
+        try {
+            return new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot deserialize object", e);
+        }
+    }
+}
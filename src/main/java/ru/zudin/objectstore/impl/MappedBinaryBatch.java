@@ -0,0 +1,117 @@
+package ru.zudin.objectstore.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary batch which reads entries from memory-mapped file. File format is the same as for {@link BinaryBatch},
+ * writes and deletes go through the file channel.
+ *
+ * File is mapped by regions of fixed size, last region grows together with file. File is mapped on the first read.
+ * Since file can not be mapped beyond its end, freshly appended entries are read via channel until unmapped tail
+ * takes 1/8 of mapped length (but no more than 1MB), then file is remapped.
+ * Mapping is dropped when channel is closed, e.g. after defragmentation replaces the file.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class MappedBinaryBatch extends BinaryBatch {
+
+    private static final long REGION_SIZE = 1024 * 1024 * 64;
+    private static final long REMAP_STEP = 1024 * 1024;
+
+    private final long regionSize;
+    private volatile Mapping mapping;
+
+    public MappedBinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
+        this(path, name, sizeLoadFactor, fileSizeThreshold, REGION_SIZE);
+    }
+
+    /**
+     * @param regionSize size of mapped regions
+     */
+    MappedBinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold, long regionSize) {
+        super(path, name, sizeLoadFactor, fileSizeThreshold);
+        this.regionSize = regionSize;
+        this.mapping = Mapping.EMPTY;
+    }
+
+    /**
+     * Read bytes from mapped region. Channel read is used if requested bytes are not mapped yet
+     * or they are placed on the border of two regions.
+     */
+    @Override
+    protected ByteBuffer read(long pos, int size) throws IOException {
+        long end = Math.min(pos + size, length());
+        if (end <= pos) {
+            return ByteBuffer.allocate(0);
+        }
+        Mapping current = mapping;
+        if (end > current.length && length() - current.length >= Math.min(REMAP_STEP, current.length / 8)) {
+            current = remap();
+        }
+        int region = (int) (pos / regionSize);
+        if (end > current.length || region != (int) ((end - 1) / regionSize)) {
+            return super.read(pos, size);
+        }
+        ByteBuffer buffer = current.regions[region].duplicate();
+        buffer.limit((int) (end - region * regionSize));
+        buffer.position((int) (pos - region * regionSize));
+        return buffer;
+    }
+
+    /**
+     * Map file up to its current length. Already mapped full regions are reused.
+     */
+    private synchronized Mapping remap() throws IOException {
+        Mapping current = mapping;
+        long length = length();
+        if (length <= current.length) {
+            return current;
+        }
+        FileChannel channel = getChannel(false);
+        int count = (int) ((length + regionSize - 1) / regionSize);
+        MappedByteBuffer[] regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * regionSize;
+            long size = Math.min(regionSize, length - start);
+            if (i < current.regions.length && current.regions[i].capacity() == size) {
+                regions[i] = current.regions[i];
+            } else {
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        mapping = new Mapping(regions, length);
+        return mapping;
+    }
+
+    /**
+     * Length of mapped part of file
+     */
+    long mappedLength() {
+        return mapping.length;
+    }
+
+    @Override
+    protected synchronized void closeChannel() throws IOException {
+        mapping = Mapping.EMPTY;
+        super.closeChannel();
+    }
+
+    /**
+     * Immutable set of mapped regions
+     */
+    private static class Mapping {
+        private static final Mapping EMPTY = new Mapping(new MappedByteBuffer[0], 0);
+
+        private final MappedByteBuffer[] regions;
+        private final long length;
+
+        Mapping(MappedByteBuffer[] regions, long length) {
+            this.regions = regions;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+
+import java.io.*;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Persistent index, which keeps its segments in memory-mapped files (see {@link MappedIndexSegment}).
+ * Index is changed in place by all operations, so there is no need to rebuild it on start,
+ * and memory used by index is bounded by page cache, not by heap.
+ *
+ * Besides segment files, index folder contains 'index.meta' file with capacity and size of each segment.
+ * Meta file is written on flush (when store is closed) and removed when index is opened for changes.
+ * So index without meta file is not consistent, e.g. application was stopped without close,
+ * and it has to be built again. Index with guids, which are not UUID strings, is never saved as consistent,
+ * since such guids are not kept in segments.
+ *
+ * Folder of index must not be used by two stores at time.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class MappedIndex extends UuidIndex {
+
+    private static final int MAGIC = 0x49445831;
+    private static final byte VERSION = 1;
+    private static final int INIT_SEGMENT_CAPACITY = 1024;
+
+    private final File folder;
+    private final File meta;
+    private final MappedIndexSegment[] segments;
+    private final boolean loaded;
+
+    private MappedIndex(File folder, ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf,
+                        MappedIndexSegment[] segments, IntFunction<Segment> segmentFactory, boolean loaded) {
+        super(idOf, batchOf, segmentFactory);
+        this.folder = folder;
+        this.meta = new File(folder, "index.meta");
+        this.segments = segments;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Open index in given folder. If there is consistent index, it is loaded, otherwise empty index is created.
+     *
+     * @param folder folder of index files, it is created if required
+     * @param idOf returns id of given batch
+     * @param batchOf returns batch by its id
+     */
+    static MappedIndex open(File folder, ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf) {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create index folder '" + folder.getPath() + "'");
+        }
+        Optional<int[][]> state = readMeta(folder);
+        if (!state.isPresent()) {
+            deleteSegments(folder);
+        }
+        AtomicReference<int[][]> existing = new AtomicReference<>(state.orElse(null));
+        MappedIndexSegment[] segments = new MappedIndexSegment[SEGMENTS];
+        IntFunction<Segment> segmentFactory = i -> {
+            int[][] current = existing.get();
+            if (current != null) {
+                segments[i] = MappedIndexSegment.open(folder, i, current[0][i], current[1][i]);
+            } else {
+                segments[i] = MappedIndexSegment.create(folder, i, INIT_SEGMENT_CAPACITY);
+            }
+            return segments[i];
+        };
+        MappedIndex index = new MappedIndex(folder, idOf, batchOf, segments, segmentFactory, state.isPresent());
+        existing.set(null);
+        return index;
+    }
+
+    /**
+     * Was consistent index loaded on open
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Mark index as not consistent, it must be called before the first change of index
+     */
+    void markDirty() {
+        meta.delete();
+    }
+
+    /**
+     * Remove all segment files and create new empty segments
+     */
+    @Override
+    public void clear() {
+        markDirty();
+        deleteSegments(folder);
+        super.clear();
+    }
+
+    /**
+     * Force all segments to disk and write meta file, so index is consistent until next change
+     */
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+        if (otherSize() > 0) {
+            markDirty();
+            return;
+        }
+        File tmp = new File(meta.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(segments.length);
+            for (MappedIndexSegment segment : segments) {
+                out.writeInt(segment.capacity());
+                out.writeInt(segment.size());
+            }
+        }
+        if (!tmp.renameTo(meta)) {
+            meta.delete();
+            if (!tmp.renameTo(meta)) {
+                throw new IOException("Cannot write index meta '" + meta.getPath() + "'");
+            }
+        }
+    }
+
+    /**
+     * Read capacities and sizes of segments. Empty optional is returned if there is no meta file,
+     * it is damaged or segment files do not match to it.
+     */
+    private static Optional<int[][]> readMeta(File folder) {
+        File meta = new File(folder, "index.meta");
+        if (!meta.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION || in.readInt() != SEGMENTS) {
+                return Optional.empty();
+            }
+            int[][] state = new int[2][SEGMENTS];
+            for (int i = 0; i < SEGMENTS; i++) {
+                state[0][i] = in.readInt();
+                state[1][i] = in.readInt();
+                if (!MappedIndexSegment.exists(folder, i, state[0][i])) {
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(state);
+        } catch (IOException e) {
+            System.out.println(String.format("Found damaged index meta in '%s', ignore it", folder.getPath()));
+            return Optional.empty();
+        }
+    }
+
+    private static void deleteSegments(File folder) {
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".idx"));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
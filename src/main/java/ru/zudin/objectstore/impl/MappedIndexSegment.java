@@ -0,0 +1,95 @@
+package ru.zudin.objectstore.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Segment of {@link MappedIndex}, which keeps its table in memory-mapped file. Table is changed in place,
+ * so only touched pages are loaded to memory, and they are written back by OS.
+ *
+ * File of table is named by segment number and capacity, e.g. 'segment-3-1024.idx'. When segment grows,
+ * new file is created for bigger table, and old file is removed after all entries are moved.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class MappedIndexSegment extends OffHeapIndexSegment {
+
+    private final File folder;
+    private final int number;
+
+    private MappedIndexSegment(File folder, int number, ByteBuffer table, int capacity, int size) {
+        super(table, capacity, size);
+        this.folder = folder;
+        this.number = number;
+    }
+
+    /**
+     * Create new empty segment, existing file of segment with the same capacity is replaced
+     */
+    static MappedIndexSegment create(File folder, int number, int capacity) {
+        return new MappedIndexSegment(folder, number, map(file(folder, number, capacity), capacity, true),
+                capacity, 0);
+    }
+
+    /**
+     * Open segment from existing file
+     *
+     * @param size number of entries in table
+     */
+    static MappedIndexSegment open(File folder, int number, int capacity, int size) {
+        return new MappedIndexSegment(folder, number, map(file(folder, number, capacity), capacity, false),
+                capacity, size);
+    }
+
+    /**
+     * Check that file of segment exists and has expected length
+     */
+    static boolean exists(File folder, int number, int capacity) {
+        File file = file(folder, number, capacity);
+        return file.exists() && file.length() == (long) capacity * SLOT_SIZE;
+    }
+
+    @Override
+    protected ByteBuffer allocate(int capacity) {
+        return map(file(folder, number, capacity), capacity, true);
+    }
+
+    @Override
+    protected void released(ByteBuffer table, int capacity) {
+        file(folder, number, capacity).delete();
+    }
+
+    /**
+     * Finish growing of table, so there is single file, and force table to disk
+     */
+    @Override
+    protected void innerFlush() {
+        finishMigration();
+        ((MappedByteBuffer) table()).force();
+    }
+
+    private static File file(File folder, int number, int capacity) {
+        return new File(folder, "segment-" + number + "-" + capacity + ".idx");
+    }
+
+    private static ByteBuffer map(File file, int capacity, boolean create) {
+        if (create) {
+            file.delete();
+        }
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            long length = (long) capacity * SLOT_SIZE;
+            if (create) {
+                accessFile.setLength(length);
+            }
+            return accessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map index file '" + file.getName() + "'", e);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package ru.zudin.objectstore.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Segment of {@link UuidIndex}, which keeps its table in direct ByteBuffer, so entries do not take heap
+ * and are not visited by garbage collector. Slot of table takes 24 bytes: two longs of guid and packed value.
+ *
+ * Segment is grown incrementally. When table is full, new table of double size is allocated, and old one is
+ * kept until all its entries are moved. Each modification moves a few slots of old table, so there is no pause
+ * for rehashing of whole segment. Moved slots of old table are marked, but not freed, so probing of
+ * not yet moved entries is not broken. Every entry is placed either in new table or in old one:
+ * lookup checks new table first, modification of entry from old table moves it to new one.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class OffHeapIndexSegment extends UuidIndex.Segment {
+
+    static final int SLOT_SIZE = 24;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int MIGRATION_STEP = 16;
+    private static final long MOVED = -1;
+
+    private ByteBuffer table;
+    private int capacity;
+    private ByteBuffer old;
+    private int oldCapacity;
+    private int migrated;
+    private int size;
+
+    OffHeapIndexSegment(int capacity) {
+        this(ByteBuffer.allocateDirect(capacity * SLOT_SIZE), capacity, 0);
+    }
+
+    /**
+     * Create segment over existing table
+     *
+     * @param table buffer with slots of table
+     * @param capacity number of slots, power of two
+     * @param size number of entries in table
+     */
+    protected OffHeapIndexSegment(ByteBuffer table, int capacity, int size) {
+        this.table = table;
+        this.capacity = capacity;
+        this.old = null;
+        this.oldCapacity = 0;
+        this.migrated = 0;
+        this.size = size;
+    }
+
+    /**
+     * Allocate zeroed buffer for table with given number of slots
+     */
+    protected ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    /**
+     * Called when all entries of old table are moved, and it is not used anymore
+     */
+    protected void released(ByteBuffer table, int capacity) {
+    }
+
+    /**
+     * Move all entries of old table, if table is growing
+     */
+    protected void finishMigration() {
+        migrate(Integer.MAX_VALUE);
+    }
+
+    protected ByteBuffer table() {
+        return table;
+    }
+
+    protected int capacity() {
+        return capacity;
+    }
+
+    @Override
+    protected int innerSize() {
+        return size;
+    }
+
+    @Override
+    protected long innerGet(long high, long low, long hash) {
+        int slot = find(table, capacity, high, low, hash);
+        if (slot >= 0) {
+            return value(table, slot);
+        }
+        if (old != null) {
+            slot = find(old, oldCapacity, high, low, hash);
+            if (slot >= 0) {
+                return value(old, slot);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    protected long innerPut(long high, long low, long hash, long value) {
+        migrate(MIGRATION_STEP);
+        int slot = find(table, capacity, high, low, hash);
+        if (slot >= 0) {
+            long previous = value(table, slot);
+            table.putLong(slot * SLOT_SIZE + 16, value);
+            return previous;
+        }
+        long previous = 0;
+        if (old != null) {
+            slot = find(old, oldCapacity, high, low, hash);
+            if (slot >= 0) {
+                previous = value(old, slot);
+                old.putLong(slot * SLOT_SIZE + 16, MOVED);
+                size--;
+            }
+        }
+        if (size + 1 > capacity * UuidIndex.LOAD_FACTOR) {
+            grow();
+        }
+        insert(high, low, hash, value);
+        size++;
+        return previous;
+    }
+
+    @Override
+    protected long innerRemove(long high, long low, long hash, long expected) {
+        migrate(MIGRATION_STEP);
+        int slot = find(table, capacity, high, low, hash);
+        if (slot >= 0) {
+            long previous = value(table, slot);
+            if (expected != 0 && previous != expected) {
+                return 0;
+            }
+            shiftBack(slot);
+            size--;
+            return previous;
+        }
+        if (old != null) {
+            slot = find(old, oldCapacity, high, low, hash);
+            if (slot >= 0) {
+                long previous = value(old, slot);
+                if (expected != 0 && previous != expected) {
+                    return 0;
+                }
+                old.putLong(slot * SLOT_SIZE + 16, MOVED);
+                size--;
+                return previous;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Start moving of entries to table of double size. If previous moving is not finished, it is finished now.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Index segment is full");
+        }
+        finishMigration();
+        old = table;
+        oldCapacity = capacity;
+        migrated = 0;
+        capacity *= 2;
+        table = allocate(capacity);
+    }
+
+    /**
+     * Move entries of given number of slots from old table to new one
+     */
+    private void migrate(int slots) {
+        while (old != null && slots-- > 0) {
+            long value = value(old, migrated);
+            if (value != 0 && value != MOVED) {
+                long high = old.getLong(migrated * SLOT_SIZE);
+                long low = old.getLong(migrated * SLOT_SIZE + 8);
+                insert(high, low, UuidIndex.hash(high, low), value);
+                old.putLong(migrated * SLOT_SIZE + 16, MOVED);
+            }
+            migrated++;
+            if (migrated == oldCapacity) {
+                ByteBuffer released = old;
+                old = null;
+                oldCapacity = 0;
+                released(released, migrated);
+            }
+        }
+    }
+
+    /**
+     * Find slot of given guid. Moved slots are skipped, since they are still part of probing sequence.
+     */
+    private static int find(ByteBuffer buffer, int capacity, long high, long low, long hash) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while (true) {
+            long value = value(buffer, slot);
+            if (value == 0) {
+                return -1;
+            }
+            if (value != MOVED && buffer.getLong(slot * SLOT_SIZE) == high
+                    && buffer.getLong(slot * SLOT_SIZE + 8) == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(long high, long low, long hash, long value) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while (value(table, slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        write(slot, high, low, value);
+    }
+
+    /**
+     * Free given slot of new table and move following entries of the cluster to the gap,
+     * if it is not before their home slot
+     */
+    private void shiftBack(int gap) {
+        int mask = capacity - 1;
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long value = value(table, slot);
+            if (value == 0) {
+                break;
+            }
+            long high = table.getLong(slot * SLOT_SIZE);
+            long low = table.getLong(slot * SLOT_SIZE + 8);
+            int home = (int) UuidIndex.hash(high, low) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                write(gap, high, low, value);
+                gap = slot;
+            }
+        }
+        table.putLong(gap * SLOT_SIZE + 16, 0);
+    }
+
+    private void write(int slot, long high, long low, long value) {
+        table.putLong(slot * SLOT_SIZE, high);
+        table.putLong(slot * SLOT_SIZE + 8, low);
+        table.putLong(slot * SLOT_SIZE + 16, value);
+    }
+
+    private static long value(ByteBuffer buffer, int slot) {
+        return buffer.getLong(slot * SLOT_SIZE + 16);
+    }
+}
@@ -0,0 +1,1141 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+import ru.zudin.objectstore.BatchDefragmentation;
+import ru.zudin.objectstore.BatchIterator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Batch which is a log of immutable segments. Nothing is rewritten in place: objects and deletes are appended
+ * to the active segment, so all writes are sequential. Delete is a tombstone record, which refers to position
+ * of deleted entry. Active segment is sealed when it reaches the size: it is forced to disk and renamed,
+ * and the next write starts new active segment. Sealed segments are never changed, so they are read via
+ * read-only memory mapping.
+ *
+ * Active segment is the file with name of batch, sealed segment has its id as suffix, e.g. 'batch-1.slog.5'.
+ * Segment starts with header: magic number, id of segment and ids of segments which were merged into it.
+ * Records have V2 layout of {@link BinaryFormat}: object is active entry, tombstone is deleted entry with
+ * guid of object and 8 bytes of its position. Position consists of segment id (high bits) and offset
+ * in segment (low 32 bits), so it is not changed when segment is sealed. New segment takes the lowest free id,
+ * so ids are reused after merge instead of growing up to the limit of position. Ids listed in header of merged
+ * segment are not reused while it exists: tombstones, which refer to merged segments, are kept only in segments
+ * written during the merge, and they are merged together with the merged segment by the next compaction.
+ *
+ * Compaction seals the active segment and merges all sealed segments into new one: objects which are not deleted
+ * are copied, and tombstones are dropped, since they refer to merged segments only. Merged segment is renamed
+ * into place before merged ones are removed, and if batch is stopped between, they are removed on next load,
+ * since header of merged segment lists them.
+ *
+ * So recovery is a replay of segments: tombstones mark their entries as deleted, and incomplete record at the end
+ * of active segment is cut off. Positions of deleted entries are kept in memory until they are compacted.
+ * Hint describes all entries of all segments, it is written on close and removed on the first change,
+ * so segments are not replayed after clean close.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class SegmentedBatch implements Batch {
+
+    private static final int MAGIC = 0x534C4731;
+    private static final int PREFETCH_SIZE = 512;
+    private static final long MIN_SEGMENT_SIZE = 4096;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_SEGMENT_ID = (int) (UuidIndex.MAX_POS >>> 32);
+    private static final BinaryFormat FORMAT = BinaryFormat.V2;
+
+    private final String path;
+    private final String name;
+    private final double sizeLoadFactor;
+    private final long fileSizeThreshold;
+    private final long segmentSize;
+    private final File file;
+    private final BatchHint hint;
+    private final NavigableMap<Integer, Segment> segments;
+    private final Set<Long> deleted;
+    private volatile Segment active;
+    private volatile Merge merge;
+    private volatile boolean loaded;
+    private boolean hintOnDisk;
+
+    /**
+     * Active segment is sealed, when it takes 1/8 of threshold
+     */
+    public SegmentedBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
+        this.path = path;
+        this.name = name;
+        this.sizeLoadFactor = sizeLoadFactor;
+        this.fileSizeThreshold = fileSizeThreshold;
+        this.segmentSize = Math.max(fileSizeThreshold / 8, MIN_SEGMENT_SIZE);
+        this.file = new File(path + name);
+        this.hint = new BatchHint(new File(path + name + ".hint"));
+        this.segments = new ConcurrentSkipListMap<>();
+        this.deleted = ConcurrentHashMap.newKeySet();
+        this.active = null;
+        this.merge = null;
+        this.loaded = false;
+        this.hintOnDisk = false;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long write(String guid, byte[] bytes) throws IOException {
+        return write(Collections.singletonList(guid), Collections.singletonList(bytes)).get(0);
+    }
+
+    /**
+     * Append key/values to active segment by single write. Segment is sealed after write, if it is big enough.
+     *
+     * @return positions of key/values
+     */
+    @Override
+    public synchronized List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        init();
+        Segment segment = activeSegment();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        List<Long> positions = new ArrayList<>(guids.size());
+        for (int i = 0; i < guids.size(); i++) {
+            positions.add(position(segment.id, segment.length + entries.size()));
+            entries.write(FORMAT.encode(true, guids.get(i), values.get(i)));
+        }
+        if (segment.length + entries.size() > MAX_OFFSET) {
+            throw new IOException("Segment of batch '" + name + "' is too big");
+        }
+        changed();
+        segment.append(entries.toByteArray());
+        if (segment.length >= segmentSize) {
+            seal();
+        }
+        return positions;
+    }
+
+    /**
+     * Force active segment to disk, sealed segments are forced when they are sealed
+     */
+    @Override
+    public void sync() throws IOException {
+        Segment current = active;
+        if (current != null) {
+            current.force();
+        }
+    }
+
+    @Override
+    public void delete(long pos) throws IOException {
+        delete(Collections.singletonList(pos));
+    }
+
+    @Override
+    public void delete(Set<String> guids) throws IOException {
+        List<Long> positions = new ArrayList<>();
+        BatchIterator iterator = createIterator();
+        try {
+            while (iterator.hasNext()) {
+                if (guids.contains(iterator.next())) {
+                    positions.add(iterator.pos());
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        delete(positions);
+    }
+
+    /**
+     * Append tombstones of active entries on given positions by single write. Positions of deleted entries
+     * are remembered, and if compaction is in progress, they are deleted from merged segment too.
+     */
+    @Override
+    public synchronized void delete(List<Long> positions) throws IOException {
+        init();
+        ByteArrayOutputStream tombstones = new ByteArrayOutputStream();
+        Map<Long, Integer> removed = new LinkedHashMap<>();
+        for (Long pos : new TreeSet<>(positions)) {
+            Segment segment = segments.get(segmentOf(pos));
+            if (segment == null || deleted.contains(pos)) {
+                continue;
+            }
+            Record record = readRecord(segment, offsetOf(pos), false);
+            if (record == null || !record.active) {
+                continue;
+            }
+            tombstones.write(FORMAT.encode(false, record.guid, ByteBuffer.allocate(8).putLong(pos).array()));
+            removed.put(pos, record.size);
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        changed();
+        Segment segment = activeSegment();
+        segment.append(tombstones.toByteArray());
+        segment.removed += tombstones.size();
+        for (Map.Entry<Long, Integer> entry : removed.entrySet()) {
+            deleted.add(entry.getKey());
+            segments.get(segmentOf(entry.getKey())).removed += entry.getValue();
+        }
+        Merge current = merge;
+        if (current != null) {
+            current.deleted.addAll(removed.keySet());
+        }
+        if (segment.length >= segmentSize) {
+            seal();
+        }
+    }
+
+    @Override
+    public Optional<byte[]> get(long pos) throws IOException {
+        return get(Collections.singletonList(pos)).get(0);
+    }
+
+    /**
+     * Get values on given positions. Nothing is returned for deleted entries.
+     *
+     * @throws IOException if segment of position does not exist
+     */
+    @Override
+    public List<Optional<byte[]>> get(List<Long> positions) throws IOException {
+        init();
+        List<Optional<byte[]>> values = new ArrayList<>(positions.size());
+        for (Long pos : positions) {
+            Segment segment = segments.get(segmentOf(pos));
+            if (segment == null) {
+                throw new IOException("Segment " + segmentOf(pos) + " of batch '" + name + "' is not found");
+            }
+            Record record = deleted.contains(pos) ? null : readRecord(segment, offsetOf(pos), true);
+            values.add(record != null && record.active ? Optional.of(record.value) : Optional.empty());
+        }
+        return values;
+    }
+
+    /**
+     * Size of segments without deleted entries and tombstones
+     */
+    @Override
+    public long validSize() {
+        initUnchecked();
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.length - segment.removed;
+        }
+        return size;
+    }
+
+    /**
+     * Total size of all segments
+     */
+    @Override
+    public long fileSize() {
+        initUnchecked();
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.length;
+        }
+        return size;
+    }
+
+    /**
+     * Compaction is needed when deleted entries and tombstones take given proportion of segments.
+     * Segments are not loaded here, since need is checked without lock of batch.
+     */
+    @Override
+    public boolean isDefragmentationNeeded() {
+        if (!loaded) {
+            return false;
+        }
+        long fileSize = fileSize();
+        if (fileSize == 0 || fileSize < fileSizeThreshold * 0.1) {
+            return false;
+        }
+        return fileSize - validSize() >= fileSize * sizeLoadFactor;
+    }
+
+    @Override
+    public Optional<Map<String, Long>> defragmentIfNeeded() throws IOException {
+        if (isDefragmentationNeeded()) {
+            return Optional.of(defragment());
+        } else {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Force compaction. All steps are executed one by one, so there must be no concurrent access to batch.
+     */
+    @Override
+    public Map<String, Long> defragment() throws IOException {
+        BatchDefragmentation defragmentation = startDefragmentation();
+        try {
+            defragmentation.copy();
+            return defragmentation.finish();
+        } catch (IOException | RuntimeException e) {
+            defragmentation.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Start compaction: active segment is sealed, and all sealed segments are merged.
+     * Objects written after start go to new active segment.
+     */
+    @Override
+    public synchronized BatchDefragmentation startDefragmentation() throws IOException {
+        init();
+        if (merge != null) {
+            throw new IllegalStateException("Defragmentation of '" + name + "' is already started");
+        }
+        System.out.println("Defragmentation start for " + name);
+        Segment current = active;
+        if (current != null && current.length > current.dataStart) {
+            seal();
+        }
+        List<Segment> inputs = new ArrayList<>(segments.values());
+        inputs.remove(active);
+        merge = new Merge(inputs.isEmpty() ? -1 : newId(), inputs);
+        return merge;
+    }
+
+    /**
+     * Load segments and return positions of active objects
+     */
+    @Override
+    public synchronized Map<String, Long> restore() throws IOException {
+        return load();
+    }
+
+    /**
+     * Sizes are known from segments, which are loaded on first use
+     */
+    @Override
+    public void restore(long validSize) {
+    }
+
+    @Override
+    public BatchIterator createIterator() throws IOException {
+        init();
+        if (segments.isEmpty()) {
+            throw new IOException(String.format("File '%s' is not exists", name));
+        }
+        return new SegmentIterator(new ArrayList<>(segments.values()));
+    }
+
+    /**
+     * Write hint and close all segments, they are loaded again on next use
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!loaded) {
+            return;
+        }
+        if (!hintOnDisk && !segments.isEmpty()) {
+            writeHint();
+        }
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        deleted.clear();
+        active = null;
+        loaded = false;
+    }
+
+    private void init() throws IOException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                }
+            }
+        }
+    }
+
+    private void initUnchecked() {
+        try {
+            init();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load segments of batch '" + name + "'", e);
+        }
+    }
+
+    /**
+     * Open segments of batch. Segments, which are listed in header of another segment, were merged into it,
+     * so they are removed. Deleted entries are taken from hint, if it describes current segments,
+     * otherwise all segments are replayed.
+     *
+     * @return positions of active objects
+     */
+    private Map<String, Long> load() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        deleted.clear();
+        active = null;
+        merge = null;
+        Set<Integer> merged = new HashSet<>();
+        File[] files = new File(path).listFiles((dir, fileName) -> fileName.startsWith(name + "."));
+        for (File segmentFile : files != null ? files : new File[0]) {
+            String suffix = segmentFile.getName().substring(name.length() + 1);
+            if (suffix.matches("\\d{1,9}\\.new")) {
+                segmentFile.delete();
+            } else if (suffix.matches("\\d{1,9}")) {
+                Segment segment = openSegment(segmentFile, true);
+                if (segment == null || segment.id != Integer.parseInt(suffix)) {
+                    throw new IOException("Damaged segment '" + segmentFile.getName() + "'");
+                }
+                segments.put(segment.id, segment);
+                merged.addAll(segment.merged);
+            }
+        }
+        for (Integer id : merged) {
+            Segment segment = segments.remove(id);
+            if (segment != null) {
+                System.out.println(String.format("Remove segment '%s' which is already merged", segment.file.getName()));
+                segment.close();
+                segment.file.delete();
+            }
+        }
+        if (file.exists()) {
+            Segment segment = openSegment(file, false);
+            if (segment == null) {
+                file.delete();
+            } else {
+                segments.put(segment.id, segment);
+                active = segment;
+            }
+        }
+        Optional<Map<String, Long>> hinted = readHint();
+        hintOnDisk = hinted.isPresent();
+        if (!hintOnDisk) {
+            hint.delete();
+        }
+        Map<String, Long> positions = hinted.isPresent() ? hinted.get() : replay();
+        loaded = true;
+        return positions;
+    }
+
+    /**
+     * Take positions of entries from hint. Hint is used only if it covers total size of segments.
+     * Hint keeps positions as offsets in concatenation of segments ordered by id, so entries
+     * are within covered length as in hint of single file.
+     */
+    private Optional<Map<String, Long>> readHint() {
+        NavigableMap<Long, Segment> starts = new TreeMap<>();
+        long fileSize = 0;
+        for (Segment segment : segments.values()) {
+            starts.put(fileSize, segment);
+            fileSize += segment.length;
+        }
+        Optional<BatchHint.Content> content = hint.read(fileSize);
+        if (!content.isPresent() || content.get().getCoveredLength() != fileSize) {
+            return Optional.empty();
+        }
+        Map<String, Long> positions = new HashMap<>();
+        Map<Integer, Long> activeSizes = new HashMap<>();
+        for (BatchHint.Entry entry : content.get().getEntries()) {
+            Map.Entry<Long, Segment> start = starts.floorEntry(entry.getPos());
+            long offset = entry.getPos() - start.getKey();
+            if (offset < start.getValue().dataStart || offset + entry.getSize() > start.getValue().length) {
+                deleted.clear();
+                return Optional.empty();
+            }
+            long pos = position(start.getValue().id, offset);
+            if (entry.isActive()) {
+                positions.put(entry.getGuid(), pos);
+                activeSizes.merge(start.getValue().id, (long) entry.getSize(), Long::sum);
+            } else {
+                deleted.add(pos);
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.removed = segment.length - segment.dataStart - activeSizes.getOrDefault(segment.id, 0L);
+        }
+        return Optional.of(positions);
+    }
+
+    /**
+     * Read all records of segments. Incomplete or damaged record of active segment is treated as the end
+     * of log, and segment is truncated there.
+     */
+    private Map<String, Long> replay() throws IOException {
+        Map<Long, Record> objects = new HashMap<>();
+        List<Long> targets = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            long offset = segment.dataStart;
+            while (true) {
+                Record record;
+                try {
+                    record = readRecord(segment, offset, segment == active);
+                } catch (IOException e) {
+                    if (segment != active) {
+                        throw e;
+                    }
+                    System.out.println(String.format("Found incomplete record in segment '%s', remove it",
+                            segment.file.getName()));
+                    segment.truncate(offset);
+                    break;
+                }
+                if (record == null) {
+                    break;
+                }
+                if (record.active) {
+                    objects.put(position(segment.id, offset), record);
+                } else {
+                    targets.add(record.target());
+                    segment.removed += record.size;
+                }
+                offset += record.size;
+            }
+        }
+        for (Long target : targets) {
+            Record record = objects.remove(target);
+            if (record != null) {
+                deleted.add(target);
+                segments.get(segmentOf(target)).removed += record.size;
+            }
+        }
+        Map<String, Long> positions = new HashMap<>();
+        for (Map.Entry<Long, Record> entry : objects.entrySet()) {
+            positions.put(entry.getValue().guid, entry.getKey());
+        }
+        return positions;
+    }
+
+    /**
+     * Write hint with all objects of segments, deleted objects are described as not active.
+     * Position of entry is its offset in concatenation of segments.
+     */
+    private void writeHint() throws IOException {
+        List<BatchHint.Entry> entries = new ArrayList<>();
+        long fileSize = 0;
+        for (Segment segment : segments.values()) {
+            long offset = segment.dataStart;
+            Record record;
+            while ((record = readRecord(segment, offset, false)) != null) {
+                if (record.active) {
+                    boolean active = !deleted.contains(position(segment.id, offset));
+                    entries.add(new BatchHint.Entry(record.guid, fileSize + offset, record.size, active));
+                }
+                offset += record.size;
+            }
+            fileSize += segment.length;
+        }
+        hint.write(fileSize, entries);
+        hintOnDisk = true;
+    }
+
+    /**
+     * Hint does not describe changed segments, so it is removed on the first change
+     */
+    private void changed() {
+        if (hintOnDisk) {
+            hint.delete();
+            hintOnDisk = false;
+        }
+    }
+
+    /**
+     * Active segment, new one is created if there is no active segment
+     */
+    private Segment activeSegment() throws IOException {
+        Segment current = active;
+        if (current == null) {
+            int id = newId();
+            byte[] header = header(id, Collections.emptyList());
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            current = new Segment(id, file, header.length, Collections.emptyList(), false);
+            current.channel = channel;
+            current.append(header);
+            segments.put(current.id, current);
+            active = current;
+        }
+        return current;
+    }
+
+    /**
+     * Force active segment to disk and rename it to sealed segment
+     */
+    private void seal() throws IOException {
+        Segment segment = active;
+        if (segment == null) {
+            return;
+        }
+        segment.force();
+        File sealed = segmentFile(segment.id);
+        if (!segment.file.renameTo(sealed)) {
+            throw new IOException("Cannot seal segment of batch '" + name + "'");
+        }
+        segment.file = sealed;
+        segment.sealed = true;
+        active = null;
+        changed();
+    }
+
+    /**
+     * The lowest id, which is not taken by segment or by merge in progress. Ids listed in header of merged
+     * segment are skipped too, otherwise segment with such id would be removed on load as already merged.
+     */
+    private int newId() throws IOException {
+        Set<Integer> taken = new HashSet<>();
+        for (Segment segment : segments.values()) {
+            taken.add(segment.id);
+            taken.addAll(segment.merged);
+        }
+        Merge current = merge;
+        if (current != null) {
+            taken.add(current.id);
+        }
+        for (int id = 0; id <= MAX_SEGMENT_ID; id++) {
+            if (!taken.contains(id)) {
+                return id;
+            }
+        }
+        throw new IOException("Segment ids of batch '" + name + "' are exhausted");
+    }
+
+    private File segmentFile(int id) {
+        return new File(path + name + "." + id);
+    }
+
+    /**
+     * Open existing segment and read its header
+     *
+     * @return segment or null if file is shorter than header
+     */
+    private Segment openSegment(File segmentFile, boolean sealed) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Damaged segment '" + segmentFile.getName() + "'");
+            }
+            int id = in.readInt();
+            int count = in.readInt();
+            if (id < 0 || count < 0) {
+                throw new IOException("Damaged segment '" + segmentFile.getName() + "'");
+            }
+            List<Integer> merged = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                merged.add(in.readInt());
+            }
+            return new Segment(id, segmentFile, 12 + 4L * count, merged, sealed);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] header(int id, List<Integer> merged) {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 4 * merged.size());
+        buffer.putInt(MAGIC);
+        buffer.putInt(id);
+        buffer.putInt(merged.size());
+        for (Integer segment : merged) {
+            buffer.putInt(segment);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read record on given offset of segment. Value of tombstone is always read.
+     *
+     * @return record or null if offset is at the end of segment
+     * @throws IOException if record is damaged or segment ends inside of it
+     */
+    private Record readRecord(Segment segment, long offset, boolean withValue) throws IOException {
+        if (offset >= segment.length) {
+            return null;
+        }
+        int size = PREFETCH_SIZE;
+        ByteBuffer buffer = segment.read(offset, size);
+        BinaryFormat.Header header = FORMAT.parse(buffer.duplicate());
+        while (header == null) {
+            if (buffer.remaining() < size) {
+                throw new IOException("Unexpected end of segment '" + segment.file.getName() + "'");
+            }
+            size *= 2;
+            buffer = segment.read(offset, size);
+            header = FORMAT.parse(buffer.duplicate());
+        }
+        if (offset + header.getEntrySize() > segment.length) {
+            throw new IOException("Unexpected end of segment '" + segment.file.getName() + "'");
+        }
+        byte[] value = null;
+        if (withValue || !header.isActive()) {
+            value = new byte[header.getValueLength()];
+            buffer.position(buffer.position() + header.getSize());
+            int prefetched = Math.min(buffer.remaining(), value.length);
+            buffer.get(value, 0, prefetched);
+            if (prefetched < value.length) {
+                segment.read(offset + header.getSize() + prefetched, value.length - prefetched)
+                        .get(value, prefetched, value.length - prefetched);
+            }
+            FORMAT.verify(header, value);
+        }
+        return new Record(header.isActive(), header.getGuid(), header.getEntrySize(), value);
+    }
+
+    private static long position(int id, long offset) {
+        return ((long) id << 32) | offset;
+    }
+
+    private static int segmentOf(long pos) {
+        return (int) (pos >>> 32);
+    }
+
+    private static long offsetOf(long pos) {
+        return pos & MAX_OFFSET;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || !(o.getClass().equals(getClass()))) return false;
+
+        SegmentedBatch batch = (SegmentedBatch) o;
+
+        return getName().equals(batch.getName());
+    }
+
+    @Override
+    public int hashCode() {
+        return getName().hashCode();
+    }
+
+    /**
+     * File of the log. Active segment is read and appended via channel, sealed segment is mapped
+     * on the first read. Channel of sealed segment stays opened, so segment is read after it is renamed.
+     */
+    private static class Segment {
+        private final int id;
+        private final long dataStart;
+        private final List<Integer> merged;
+        private volatile File file;
+        private volatile boolean sealed;
+        private volatile long length;
+        private volatile long removed;
+        private volatile FileChannel channel;
+        private volatile ByteBuffer mapping;
+
+        Segment(int id, File file, long dataStart, List<Integer> merged, boolean sealed) {
+            this.id = id;
+            this.file = file;
+            this.dataStart = dataStart;
+            this.merged = merged;
+            this.sealed = sealed;
+            this.length = file.length();
+            this.removed = 0;
+            this.channel = null;
+            this.mapping = null;
+        }
+
+        /**
+         * Read up to given number of bytes from given offset
+         *
+         * @return buffer ready for reading, it contains less bytes if end of segment is reached
+         */
+        ByteBuffer read(long offset, int size) throws IOException {
+            long end = Math.min(offset + size, length);
+            if (end <= offset) {
+                return ByteBuffer.allocate(0);
+            }
+            ByteBuffer current = sealed ? mapping() : null;
+            if (current != null) {
+                ByteBuffer buffer = current.duplicate();
+                buffer.limit((int) end);
+                buffer.position((int) offset);
+                return buffer;
+            }
+            FileChannel channel = channel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - offset));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        void append(byte[] bytes) throws IOException {
+            FileChannel channel = channel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, length + buffer.position());
+            }
+            length += bytes.length;
+        }
+
+        void force() throws IOException {
+            FileChannel current = channel;
+            if (current != null && current.isOpen()) {
+                current.force(false);
+            }
+        }
+
+        void truncate(long size) throws IOException {
+            channel().truncate(size);
+            length = size;
+        }
+
+        /**
+         * Mapping of sealed segment, big segment is not mapped and it is read via channel
+         */
+        private ByteBuffer mapping() throws IOException {
+            ByteBuffer current = mapping;
+            if (current == null && length <= Integer.MAX_VALUE) {
+                synchronized (this) {
+                    current = mapping;
+                    if (current == null) {
+                        current = channel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                        mapping = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current == null || !current.isOpen()) {
+                synchronized (this) {
+                    current = channel;
+                    if (current == null || !current.isOpen()) {
+                        current = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        channel = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        synchronized void close() throws IOException {
+            mapping = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Record of segment: object or tombstone
+     */
+    private static class Record {
+        private final boolean active;
+        private final String guid;
+        private final int size;
+        private final byte[] value;
+
+        Record(boolean active, String guid, int size, byte[] value) {
+            this.active = active;
+            this.guid = guid;
+            this.size = size;
+            this.value = value;
+        }
+
+        /**
+         * Position of entry, which is deleted by tombstone
+         */
+        long target() throws IOException {
+            if (value.length != 8) {
+                throw new IOException("Damaged tombstone of " + guid);
+            }
+            return ByteBuffer.wrap(value).getLong();
+        }
+    }
+
+    /**
+     * Iterator over active objects of segments, which existed when iterator was created.
+     * Objects appended to these segments later are visited too.
+     */
+    private class SegmentIterator implements BatchIterator {
+        private final List<Segment> snapshot;
+        private int index;
+        private long offset;
+        private Boolean hasNext;
+        private Segment nextSegment;
+        private long nextOffset;
+        private Record next;
+        private Segment segment;
+        private long pos;
+        private Record current;
+        private byte[] value;
+        private boolean wasRemove;
+
+        SegmentIterator(List<Segment> snapshot) {
+            this.snapshot = snapshot;
+            this.index = 0;
+            this.offset = 0;
+            this.hasNext = null;
+            this.current = null;
+            this.wasRemove = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (hasNext == null) {
+                try {
+                    hasNext = advance();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read batch '" + name + "'", e);
+                }
+            }
+            return hasNext;
+        }
+
+        /**
+         * Find next active object, tombstones and deleted objects are skipped
+         */
+        private boolean advance() throws IOException {
+            while (index < snapshot.size()) {
+                Segment segment = snapshot.get(index);
+                offset = Math.max(offset, segment.dataStart);
+                Record record = readRecord(segment, offset, false);
+                if (record == null) {
+                    index++;
+                    offset = 0;
+                    continue;
+                }
+                long recordOffset = offset;
+                offset += record.size;
+                if (record.active && !deleted.contains(position(segment.id, recordOffset))) {
+                    nextSegment = segment;
+                    nextOffset = recordOffset;
+                    next = record;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            segment = nextSegment;
+            pos = position(segment.id, nextOffset);
+            current = next;
+            value = null;
+            wasRemove = false;
+            return current.guid;
+        }
+
+        /**
+         * Append tombstone of current object
+         */
+        @Override
+        public void remove() {
+            if (current == null || wasRemove) {
+                throw new IllegalStateException("Next() method has not yet been called");
+            }
+            try {
+                delete(pos);
+                wasRemove = true;
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot delete from batch '" + name + "'", e);
+            }
+        }
+
+        @Override
+        public byte[] value() {
+            if (current == null) {
+                throw new IllegalStateException("Next() method has not yet been called");
+            }
+            if (value == null) {
+                try {
+                    value = readRecord(segment, offsetOf(pos), true).value;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read batch '" + name + "'", e);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public long pos() {
+            return pos;
+        }
+
+        /**
+         * Continue iteration from given position. Position in segment, which is not in snapshot,
+         * continues from the next segment.
+         */
+        @Override
+        public void setStartPos(long pos) {
+            index = 0;
+            while (index < snapshot.size() && snapshot.get(index).id < segmentOf(pos)) {
+                index++;
+            }
+            boolean found = index < snapshot.size() && snapshot.get(index).id == segmentOf(pos);
+            offset = found ? offsetOf(pos) : 0;
+            hasNext = null;
+            current = null;
+            value = null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Merge of sealed segments into new segment. Objects are copied while batch is still used: sealed segments
+     * are not changed, and positions deleted meanwhile are collected to delete them from merged segment on finish.
+     */
+    private class Merge implements BatchDefragmentation {
+        private final int id;
+        private final List<Segment> inputs;
+        private final File newFile;
+        private final List<Long> deleted;
+        private final Map<Long, BatchHint.Entry> copied;
+        private Segment merged;
+
+        Merge(int id, List<Segment> inputs) {
+            this.id = id;
+            this.inputs = inputs;
+            this.newFile = new File(path + name + "." + id + ".new");
+            this.deleted = Collections.synchronizedList(new ArrayList<>());
+            this.copied = new LinkedHashMap<>();
+            this.merged = null;
+        }
+
+        /**
+         * Copy objects of sealed segments, which are not deleted, to new segment and force it to disk
+         */
+        @Override
+        public void copy() throws IOException {
+            if (inputs.isEmpty()) {
+                return;
+            }
+            List<Integer> ids = new ArrayList<>();
+            for (Segment segment : inputs) {
+                ids.add(segment.id);
+            }
+            newFile.delete();
+            try (FileOutputStream stream = new FileOutputStream(newFile)) {
+                OutputStream out = new BufferedOutputStream(stream);
+                byte[] header = header(id, ids);
+                out.write(header);
+                long length = header.length;
+                for (Segment segment : inputs) {
+                    long offset = segment.dataStart;
+                    Record record;
+                    while ((record = readRecord(segment, offset, false)) != null) {
+                        long pos = position(segment.id, offset);
+                        if (record.active && !SegmentedBatch.this.deleted.contains(pos)) {
+                            if (length + record.size > MAX_OFFSET) {
+                                throw new IOException("Merged segment of batch '" + name + "' is too big");
+                            }
+                            ByteBuffer raw = segment.read(offset, record.size);
+                            byte[] bytes = new byte[raw.remaining()];
+                            raw.get(bytes);
+                            out.write(bytes);
+                            copied.put(pos, new BatchHint.Entry(record.guid, position(id, length), record.size, true));
+                            length += record.size;
+                        }
+                        offset += record.size;
+                    }
+                }
+                out.flush();
+                stream.getChannel().force(true);
+            }
+        }
+
+        /**
+         * Delete objects, which were copied but deleted meanwhile, from merged segment, rename merged segment
+         * into place and remove sealed segments
+         */
+        @Override
+        public Map<String, Long> finish() throws IOException {
+            long start = System.currentTimeMillis();
+            synchronized (SegmentedBatch.this) {
+                merge = null;
+                if (!inputs.isEmpty()) {
+                    merged = openSegment(newFile, true);
+                    if (merged == null) {
+                        throw new IOException("Merged segment of batch '" + name + "' is not found");
+                    }
+                    segments.put(id, merged);
+                }
+                List<Long> newDeleted = new ArrayList<>();
+                synchronized (deleted) {
+                    for (Long pos : deleted) {
+                        BatchHint.Entry entry = copied.remove(pos);
+                        if (entry != null) {
+                            newDeleted.add(entry.getPos());
+                        }
+                    }
+                }
+                if (!newDeleted.isEmpty()) {
+                    delete(newDeleted);
+                    sync();
+                }
+                if (merged != null) {
+                    File target = segmentFile(id);
+                    if (!newFile.renameTo(target)) {
+                        throw new IOException("Cannot rename merged segment of batch '" + name + "'");
+                    }
+                    merged.file = target;
+                }
+                Set<Integer> ids = new HashSet<>();
+                for (Segment segment : inputs) {
+                    ids.add(segment.id);
+                    segments.remove(segment.id);
+                    segment.close();
+                    segment.file.delete();
+                }
+                SegmentedBatch.this.deleted.removeIf(pos -> ids.contains(segmentOf(pos)));
+                changed();
+                Map<String, Long> positions = new HashMap<>();
+                for (BatchHint.Entry entry : copied.values()) {
+                    positions.put(entry.getGuid(), entry.getPos());
+                }
+                for (Segment segment : segments.values()) {
+                    if (segment == merged) {
+                        continue;
+                    }
+                    long offset = segment.dataStart;
+                    Record record;
+                    while ((record = readRecord(segment, offset, false)) != null) {
+                        long pos = position(segment.id, offset);
+                        if (record.active && !SegmentedBatch.this.deleted.contains(pos)) {
+                            positions.put(record.guid, pos);
+                        }
+                        offset += record.size;
+                    }
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                System.out.println(String.format("Defragmentation finish for %s, took %d millis", name, elapsed));
+                return positions;
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (SegmentedBatch.this) {
+                if (merge == this) {
+                    merge = null;
+                }
+                if (merged != null && segments.get(id) == merged) {
+                    segments.remove(id);
+                    try {
+                        merged.close();
+                    } catch (IOException e) {
+                        // segment is removed anyway
+                    }
+                }
+                newFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package ru.zudin.objectstore.impl;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Binary batch which keeps entries sorted by guid, so object can be found in batch without full index.
+ *
+ * Defragmentation writes active entries sorted by guid (sorted run). Run is preceded by index block:
+ * guid and offset of the first entry of every block of about 64KB. Index block is stored as deleted entry
+ * with empty guid, so file can be read as usual binary batch, and all operations by position are not changed.
+ * Entries appended after defragmentation form unsorted tail, they are merged into sorted run by next
+ * defragmentation, which is needed when tail takes significant part of file.
+ *
+ * Tail is split into blocks of the same size, and each block has bloom filter of fixed size with guids
+ * of its entries. Lookup of guid scans blocks of tail, whose filters may contain it, then binary searches
+ * index block and scans single block of run. So memory of batch does not depend on number of objects:
+ * it keeps a filter for each block of tail and the first guid of each block of run.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class SortedBinaryBatch extends BinaryBatch {
+
+    private static final int MAGIC = 0x53525431;
+    private static final int BLOCK_SIZE = WINDOW_SIZE;
+    private static final int TAIL_BLOCK_ENTRIES = BLOCK_SIZE / 128;
+    private static final double TAIL_FILTER_FPP = 0.01;
+
+    private final double sizeLoadFactor;
+    private final long fileSizeThreshold;
+    private final Object lookupLock;
+    private volatile Run run;
+    private volatile Tail tail;
+
+    public SortedBinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold) {
+        this(path, name, sizeLoadFactor, fileSizeThreshold, BinaryFormat.V1);
+    }
+
+    /**
+     * @param format format of new files
+     */
+    SortedBinaryBatch(String path, String name, double sizeLoadFactor, long fileSizeThreshold, BinaryFormat format) {
+        super(path, name, sizeLoadFactor, fileSizeThreshold, format);
+        this.sizeLoadFactor = sizeLoadFactor;
+        this.fileSizeThreshold = fileSizeThreshold;
+        this.lookupLock = new Object();
+        this.run = null;
+        this.tail = null;
+    }
+
+    /**
+     * Index block is loaded before the first write, so it is known when need of defragmentation is checked
+     */
+    @Override
+    public List<Long> write(List<String> guids, List<byte[]> values) throws IOException {
+        run();
+        List<Long> positions = super.write(guids, values);
+        synchronized (lookupLock) {
+            Tail current = tail;
+            if (current != null) {
+                for (int i = 0; i < guids.size(); i++) {
+                    current.add(guids.get(i), positions.get(i));
+                }
+                current.end = fileSize();
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Find position of active object with given guid. Filters of the tail are loaded on first call.
+     * Blocks of tail are scanned from the last one, so the latest entry of guid is found first.
+     *
+     * @return position of object or Optional.empty() if there is no such object in batch
+     */
+    Optional<Long> find(String guid) throws IOException {
+        Tail current = tail();
+        long end = current.end;
+        List<TailBlock> blocks = current.blocks;
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            TailBlock block = blocks.get(i);
+            if (block.first < end && block.filter.mightContain(guid)) {
+                Optional<Long> pos = scan(block.first, Math.min(block.limit, end), guid, false);
+                if (pos.isPresent()) {
+                    return pos;
+                }
+            }
+        }
+        return search(run(), guid);
+    }
+
+    /**
+     * Besides deleted objects, defragmentation is needed to merge tail into sorted run,
+     * when tail takes the same proportion of file as deleted objects do. Need is checked without lock of batch,
+     * so file is not read here: it may be replaced meanwhile, and channel would be opened for the old file.
+     * Tail is not checked until index block is loaded by write or lookup.
+     */
+    @Override
+    public boolean isDefragmentationNeeded() {
+        if (super.isDefragmentationNeeded()) {
+            return true;
+        }
+        long fileSize = fileSize();
+        Run current = run;
+        if (current == null || fileSize == 0 || fileSize < fileSizeThreshold * 0.1) {
+            return false;
+        }
+        return fileSize - current.getEnd() >= fileSize * sizeLoadFactor;
+    }
+
+    /**
+     * Write index block and active entries sorted by guid. Entries are read one by one in order of guids,
+     * sizes of entries are known in advance, so index block is written before them.
+     */
+    @Override
+    protected void copyEntries(FileDefragmentation defragmentation, long length) throws IOException {
+        List<BatchHint.Entry> entries = readEntries(dataStart(), length);
+        entries.sort(Comparator.comparing(BatchHint.Entry::getGuid));
+        List<String> keys = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        long blockStart = -BLOCK_SIZE;
+        for (BatchHint.Entry entry : entries) {
+            if (offset - blockStart >= BLOCK_SIZE) {
+                keys.add(entry.getGuid());
+                offsets.add(offset);
+                blockStart = offset;
+            }
+            offset += entry.getSize();
+        }
+        try (OutputStream out = defragmentation.open()) {
+            defragmentation.append(out, -1, "", getFormat().encode(false, "", encodeIndex(keys, offsets, offset)));
+            for (BatchHint.Entry entry : entries) {
+                Optional<Entry> read = readEntry(entry.getPos(), true);
+                if (!read.isPresent() || read.get().getSize() != entry.getSize()) {
+                    throw new IOException("Entry is changed while batch '" + getName() + "' is sorted");
+                }
+                defragmentation.append(out, entry.getPos(), entry.getGuid(), encode(entry.getGuid(), read.get().getValue()));
+            }
+        }
+    }
+
+    /**
+     * Index block and positions of the tail are reloaded after file is closed or replaced
+     */
+    @Override
+    protected void closeChannel() throws IOException {
+        synchronized (lookupLock) {
+            run = null;
+            tail = null;
+        }
+        super.closeChannel();
+    }
+
+    private Run run() throws IOException {
+        Run current = run;
+        if (current == null) {
+            synchronized (lookupLock) {
+                current = run;
+                if (current == null) {
+                    current = readIndex();
+                    run = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Filters of the tail are built by single pass of iterator, entries are not collected meanwhile
+     */
+    private Tail tail() throws IOException {
+        Tail current = tail;
+        if (current == null) {
+            synchronized (lookupLock) {
+                current = tail;
+                if (current == null) {
+                    long end = fileSize();
+                    current = new Tail(run().getEnd());
+                    if (current.start < end) {
+                        AbstractFileBatchIterator iterator = innerCreateIterator();
+                        try {
+                            iterator.setStartPos(current.start);
+                            iterator.setEndPos(end);
+                            while (iterator.hasNext()) {
+                                current.add(iterator.next(), iterator.pos());
+                            }
+                        } finally {
+                            iterator.close();
+                        }
+                    }
+                    current.end = end;
+                    tail = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Scan block of sorted run, which may contain given guid
+     */
+    private Optional<Long> search(Run run, String guid) throws IOException {
+        int i = Arrays.binarySearch(run.keys, guid);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            return Optional.empty();
+        }
+        long pos = run.start + run.offsets[i];
+        long end = i + 1 < run.keys.length ? run.start + run.offsets[i + 1] : run.getEnd();
+        return scan(pos, end, guid, true);
+    }
+
+    /**
+     * Read entries between given positions by windows and find active entry of guid. Sorted entries are scanned
+     * until the first greater guid, entries of tail are scanned till the end, since deleted entry of guid
+     * can be followed by active one.
+     */
+    private Optional<Long> scan(long pos, long end, String guid, boolean sorted) throws IOException {
+        BinaryFormat fileFormat = fileFormat();
+        ByteBuffer window = null;
+        long windowStart = 0;
+        while (pos < end) {
+            if (window == null || pos + BinaryFormat.MIN_HEADER_SIZE > windowStart + window.remaining()) {
+                window = read(pos, WINDOW_SIZE);
+                windowStart = pos;
+            }
+            ByteBuffer buffer = window.duplicate();
+            buffer.position(window.position() + (int) (pos - windowStart));
+            BinaryFormat.Header header = fileFormat.parse(buffer);
+            if (header == null) {
+                if (windowStart == pos) {
+                    throw new IOException("Unexpected end of file '" + getName() + "'");
+                }
+                window = null;
+                continue;
+            }
+            int compare = header.getGuid().compareTo(guid);
+            if (compare == 0 && header.isActive()) {
+                return Optional.of(pos);
+            }
+            if (sorted && compare >= 0) {
+                return Optional.empty();
+            }
+            pos += header.getEntrySize();
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Encode index block, which is stored as value of deleted entry with empty guid. Block contains of magic number,
+     * length of sorted run, number of blocks and guid and offset from start of run of the first entry of each block.
+     */
+    private static byte[] encodeIndex(List<String> keys, List<Long> offsets, long runLength) {
+        List<byte[]> encoded = new ArrayList<>(keys.size());
+        int size = 16;
+        for (String key : keys) {
+            byte[] bytes = key.getBytes();
+            encoded.add(bytes);
+            size += 12 + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putLong(runLength);
+        buffer.putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            buffer.putInt(encoded.get(i).length);
+            buffer.put(encoded.get(i));
+            buffer.putLong(offsets.get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read index block from the start of file. If file starts with usual entry, it has no sorted run,
+     * and the whole file is the tail.
+     */
+    private Run readIndex() throws IOException {
+        long start = dataStart();
+        Run empty = new Run(new String[0], new long[0], start, 0);
+        if (fileSize() <= start) {
+            return empty;
+        }
+        BinaryFormat fileFormat = fileFormat();
+        BinaryFormat.Header header = fileFormat.parse(read(start, WINDOW_SIZE));
+        if (header == null || header.isActive() || !header.getGuid().isEmpty()) {
+            return empty;
+        }
+        byte[] block = new byte[header.getValueLength()];
+        ByteBuffer buffer = read(start + header.getSize(), block.length);
+        if (block.length < 16 || buffer.remaining() < block.length) {
+            return empty;
+        }
+        buffer.get(block);
+        fileFormat.verify(header, block);
+        buffer = ByteBuffer.wrap(block);
+        if (buffer.getInt() != MAGIC) {
+            return empty;
+        }
+        long runLength = buffer.getLong();
+        int count = buffer.getInt();
+        String[] keys = new String[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            keys[i] = new String(key);
+            offsets[i] = buffer.getLong();
+        }
+        return new Run(keys, offsets, start + header.getEntrySize(), runLength);
+    }
+
+    /**
+     * Unsorted tail of file. Block of tail holds entries, which start in range of BLOCK_SIZE bytes.
+     * Blocks are added under lookup lock, while lookups read them without lock, so only entries before
+     * the end are searched: end is moved after entries are added to filter.
+     */
+    private static class Tail {
+        private final long start;
+        private final List<TailBlock> blocks;
+        private volatile long end;
+
+        Tail(long start) {
+            this.start = start;
+            this.blocks = new CopyOnWriteArrayList<>();
+            this.end = start;
+        }
+
+        void add(String guid, long pos) {
+            TailBlock last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (last == null || pos >= last.limit) {
+                long limit = start + ((pos - start) / BLOCK_SIZE + 1) * BLOCK_SIZE;
+                last = new TailBlock(pos, limit);
+                blocks.add(last);
+            }
+            last.filter.put(guid);
+        }
+    }
+
+    /**
+     * Block of tail: position of its first entry, end of its range and filter of guids
+     */
+    private static class TailBlock {
+        private final long first;
+        private final long limit;
+        private final BloomFilter<CharSequence> filter;
+
+        TailBlock(long first, long limit) {
+            this.first = first;
+            this.limit = limit;
+            this.filter = BloomFilter.create(Funnels.unencodedCharsFunnel(), TAIL_BLOCK_ENTRIES, TAIL_FILTER_FPP);
+        }
+    }
+
+    /**
+     * Sorted run of file: first guids of blocks and their offsets from start of run
+     */
+    private static class Run {
+        private final String[] keys;
+        private final long[] offsets;
+        private final long start;
+        private final long length;
+
+        Run(String[] keys, long[] offsets, long start, long length) {
+            this.keys = keys;
+            this.offsets = offsets;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Position after the last entry of run, tail starts from it
+         */
+        long getEnd() {
+            return start + length;
+        }
+    }
+}
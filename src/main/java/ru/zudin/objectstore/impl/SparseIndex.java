@@ -0,0 +1,130 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Index without entries, it is used together with {@link SortedBinaryBatch}. Each sorted batch can find
+ * its objects by itself, so position of object is found by asking batches one by one. Memory of index
+ * does not depend on number of objects, but lookup takes a read of block for each batch.
+ *
+ * Positions are not kept, so put and remove do nothing: object is already written or marked as deleted in batch.
+ * Batches retired by shrink are asked first: migration writes object to remaining batch before it is removed
+ * from retired one, so moved object is found in one of them. Then the batch, where object is expected
+ * (home batch of HASH placement), is asked, so usually lookup reads single block. Other batches are asked
+ * only if object is not found there, e.g. it is not moved by re-balance yet or it does not exist.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class SparseIndex implements Index {
+
+    private final List<Batch> batches;
+    private final List<Batch> retired;
+    private final Function<Batch, BatchLock> lockOf;
+    private final Function<String, Batch> expectedOf;
+
+    /**
+     * @param batches batches of store, all of them must be sorted
+     * @param retired batches which are retired by shrink, but still have objects
+     * @param lockOf returns lock of given batch, batch is searched under its read lock
+     * @param expectedOf returns batch, where object with given guid is expected, or null if it is not known
+     */
+    SparseIndex(List<Batch> batches, List<Batch> retired, Function<Batch, BatchLock> lockOf,
+                Function<String, Batch> expectedOf) {
+        this.batches = batches;
+        this.retired = retired;
+        this.lockOf = lockOf;
+        this.expectedOf = expectedOf;
+    }
+
+    @Override
+    public FileSystemObjectStore.Position get(String guid) {
+        FileSystemObjectStore.Position position = get(retired, guid, null);
+        if (position != null) {
+            return position;
+        }
+        Batch expected = expectedOf.apply(guid);
+        if (expected != null) {
+            position = get(Collections.singletonList(expected), guid, null);
+            if (position != null) {
+                return position;
+            }
+        }
+        return get(batches, guid, expected);
+    }
+
+    /**
+     * Ask batches one by one
+     *
+     * @param skipped batch, which is already asked
+     */
+    private FileSystemObjectStore.Position get(List<Batch> batches, String guid, Batch skipped) {
+        for (Batch batch : batches) {
+            if (skipped != null && skipped.equals(batch)) {
+                continue;
+            }
+            BatchLock lock = lockOf.apply(batch);
+            lock.lockRead();
+            try {
+                if (batch.fileSize() == 0) {
+                    continue;
+                }
+                Optional<Long> pos = ((SortedBinaryBatch) batch).find(guid);
+                if (pos.isPresent()) {
+                    return new FileSystemObjectStore.Position(batch, pos.get());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot search batch " + batch.getName(), e);
+            } finally {
+                lock.unlockRead();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Object is already written to batch, so given position is returned as known one
+     */
+    @Override
+    public FileSystemObjectStore.Position put(String guid, FileSystemObjectStore.Position position) {
+        return position;
+    }
+
+    @Override
+    public FileSystemObjectStore.Position remove(String guid) {
+        return null;
+    }
+
+    @Override
+    public boolean remove(String guid, FileSystemObjectStore.Position position) {
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(String guid) {
+        return get(guid) != null;
+    }
+
+    /**
+     * Index keeps no guids
+     */
+    @Override
+    public long size() {
+        return 0;
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void flush() {
+    }
+}
@@ -0,0 +1,425 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compact in-memory index for UUID guids.
+ *
+ * Guid, which is generated by the store, is a UUID string, so it is kept as two longs. Batch and position
+ * are packed to one long: id of batch (16 bits, plus one, so zero means empty slot) and position (48 bits).
+ * Each entry takes 24 bytes of three parallel arrays of open-addressing table with linear probing, and there
+ * are no objects per entry. Deleted entries are not marked, following entries of the same cluster
+ * are shifted back instead, so lookups never walk over 'tombstones'.
+ *
+ * Table is split into segments by hash of guid, each segment has its own read/write lock and is grown
+ * independently. Segments are kept on heap by default, or off-heap (see {@link OffHeapIndexSegment}).
+ * Guids, which are not UUID strings in canonical form, are kept in separate concurrent map.
+ *
+ * @author sergey
+ * @since 16.10.26
+ */
+class UuidIndex implements Index {
+
+    private static final int SEGMENT_BITS = 6;
+    static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INIT_SEGMENT_CAPACITY = 256;
+    static final double LOAD_FACTOR = 0.75;
+    static final int MAX_BATCH_ID = (1 << 16) - 3;
+    static final long MAX_POS = (1L << 48) - 1;
+
+    private final Segment[] segments;
+    private final Map<String, Long> other;
+    private final ToIntFunction<Batch> idOf;
+    private final IntFunction<Batch> batchOf;
+    private final IntFunction<Segment> segmentFactory;
+
+    /**
+     * Create index with segments on heap
+     *
+     * @param idOf returns id of given batch, from 0 to MAX_BATCH_ID
+     * @param batchOf returns batch by its id
+     */
+    UuidIndex(ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf) {
+        this(idOf, batchOf, i -> new HeapSegment(INIT_SEGMENT_CAPACITY));
+    }
+
+    /**
+     * @param idOf returns id of given batch, from 0 to MAX_BATCH_ID
+     * @param batchOf returns batch by its id
+     * @param segmentFactory creates segment of index by its number
+     */
+    UuidIndex(ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf, IntFunction<Segment> segmentFactory) {
+        this.idOf = idOf;
+        this.batchOf = batchOf;
+        this.segmentFactory = segmentFactory;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segmentFactory.apply(i);
+        }
+        this.other = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public FileSystemObjectStore.Position get(String guid) {
+        if (!isUuid(guid)) {
+            return unpack(other.getOrDefault(guid, 0L));
+        }
+        long high = high(guid);
+        long low = low(guid);
+        long hash = hash(high, low);
+        return unpack(segmentOf(hash).get(high, low, hash));
+    }
+
+    @Override
+    public FileSystemObjectStore.Position put(String guid, FileSystemObjectStore.Position position) {
+        long value = pack(position);
+        if (!isUuid(guid)) {
+            Long previous = other.put(guid, value);
+            return previous == null ? null : unpack(previous);
+        }
+        long high = high(guid);
+        long low = low(guid);
+        long hash = hash(high, low);
+        return unpack(segmentOf(hash).put(high, low, hash, value));
+    }
+
+    @Override
+    public FileSystemObjectStore.Position remove(String guid) {
+        if (!isUuid(guid)) {
+            Long previous = other.remove(guid);
+            return previous == null ? null : unpack(previous);
+        }
+        long high = high(guid);
+        long low = low(guid);
+        long hash = hash(high, low);
+        return unpack(segmentOf(hash).remove(high, low, hash, 0));
+    }
+
+    @Override
+    public boolean remove(String guid, FileSystemObjectStore.Position position) {
+        long value = pack(position);
+        if (!isUuid(guid)) {
+            return other.remove(guid, value);
+        }
+        long high = high(guid);
+        long low = low(guid);
+        long hash = hash(high, low);
+        return segmentOf(hash).remove(high, low, hash, value) != 0;
+    }
+
+    @Override
+    public boolean containsKey(String guid) {
+        return get(guid) != null;
+    }
+
+    @Override
+    public long size() {
+        long size = other.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Replace all segments by new ones. Must not be called concurrently with other operations.
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segmentFactory.apply(i);
+        }
+        other.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Segment segment : segments) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Number of guids, which are not UUID strings
+     */
+    protected int otherSize() {
+        return other.size();
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private long pack(FileSystemObjectStore.Position position) {
+        int id = idOf.applyAsInt(position.getBatch());
+        long pos = position.getPos();
+        if (id < 0 || id > MAX_BATCH_ID || pos < 0 || pos > MAX_POS) {
+            throw new IllegalArgumentException(String.format("Cannot index position %d of batch %s",
+                    pos, position.getBatch().getName()));
+        }
+        return ((id + 1L) << 48) | pos;
+    }
+
+    private FileSystemObjectStore.Position unpack(long value) {
+        if (value == 0) {
+            return null;
+        }
+        return new FileSystemObjectStore.Position(batchOf.apply((int) (value >>> 48) - 1), value & MAX_POS);
+    }
+
+    /**
+     * Check that guid is UUID string in canonical (lowercase) form, so it can be restored from two longs
+     */
+    static boolean isUuid(String guid) {
+        if (guid.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = guid.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Most significant bits of UUID, guid must be checked before
+     */
+    private static long high(String guid) {
+        return hex(guid, 0, 8) << 32 | hex(guid, 9, 13) << 16 | hex(guid, 14, 18);
+    }
+
+    /**
+     * Least significant bits of UUID, guid must be checked before
+     */
+    private static long low(String guid) {
+        return hex(guid, 19, 23) << 48 | hex(guid, 24, 36);
+    }
+
+    private static long hex(String guid, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value << 4 | Character.digit(guid.charAt(i), 16);
+        }
+        return value;
+    }
+
+    static long hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L ^ low;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Segment of index. Segment is guarded by read/write lock, implementations keep table itself.
+     * Value zero means absence of entry.
+     */
+    abstract static class Segment {
+        private final ReentrantReadWriteLock lock;
+
+        Segment() {
+            this.lock = new ReentrantReadWriteLock();
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return innerSize();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long get(long high, long low, long hash) {
+            lock.readLock().lock();
+            try {
+                return innerGet(high, low, hash);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return previous value or zero if there was no entry
+         */
+        long put(long high, long low, long hash, long value) {
+            lock.writeLock().lock();
+            try {
+                return innerPut(high, low, hash, value);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Remove entry if its value is equal to expected one, or any value if expected is zero
+         *
+         * @return removed value or zero if nothing is removed
+         */
+        long remove(long high, long low, long hash, long expected) {
+            lock.writeLock().lock();
+            try {
+                return innerRemove(high, low, hash, expected);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Write segment to its storage, if it has any
+         */
+        void flush() throws IOException {
+            lock.writeLock().lock();
+            try {
+                innerFlush();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        protected void innerFlush() throws IOException {
+        }
+
+        protected abstract int innerSize();
+
+        protected abstract long innerGet(long high, long low, long hash);
+
+        protected abstract long innerPut(long high, long low, long hash, long value);
+
+        protected abstract long innerRemove(long high, long low, long hash, long expected);
+    }
+
+    /**
+     * Segment on heap: open-addressing table with linear probing in three arrays
+     */
+    private static class HeapSegment extends Segment {
+        private long[] highs;
+        private long[] lows;
+        private long[] values;
+        private int size;
+
+        HeapSegment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            values = new long[capacity];
+            size = 0;
+        }
+
+        @Override
+        protected int innerSize() {
+            return size;
+        }
+
+        @Override
+        protected long innerGet(long high, long low, long hash) {
+            int slot = find(high, low, hash);
+            return slot < 0 ? 0 : values[slot];
+        }
+
+        @Override
+        protected long innerPut(long high, long low, long hash, long value) {
+            int slot = find(high, low, hash);
+            if (slot >= 0) {
+                long previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            if (size + 1 > values.length * LOAD_FACTOR) {
+                resize();
+            }
+            insert(high, low, hash, value);
+            return 0;
+        }
+
+        @Override
+        protected long innerRemove(long high, long low, long hash, long expected) {
+            int slot = find(high, low, hash);
+            if (slot < 0 || expected != 0 && values[slot] != expected) {
+                return 0;
+            }
+            long previous = values[slot];
+            shiftBack(slot);
+            size--;
+            return previous;
+        }
+
+        private int find(long high, long low, long hash) {
+            int mask = values.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != 0) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void insert(long high, long low, long hash, long value) {
+            int mask = values.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            values[slot] = value;
+            size++;
+        }
+
+        /**
+         * Free given slot and move following entries of the cluster to the gap, if it is
+         * not before their home slot
+         */
+        private void shiftBack(int gap) {
+            int mask = values.length - 1;
+            int slot = gap;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (values[slot] == 0) {
+                    break;
+                }
+                int home = (int) hash(highs[slot], lows[slot]) & mask;
+                if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                    highs[gap] = highs[slot];
+                    lows[gap] = lows[slot];
+                    values[gap] = values[slot];
+                    gap = slot;
+                }
+            }
+            values[gap] = 0;
+        }
+
+        private void resize() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldValues = values;
+            allocate(oldValues.length * 2);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != 0) {
+                    insert(oldHighs[i], oldLows[i], hash(oldHighs[i], oldLows[i]), oldValues[i]);
+                }
+            }
+        }
+    }
+}
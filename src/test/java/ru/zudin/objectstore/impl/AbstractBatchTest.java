@@ -3,10 +3,16 @@ package ru.zudin.objectstore.impl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import ru.zudin.objectstore.BatchDefragmentation;
 import ru.zudin.objectstore.BatchIterator;
 import ru.zudin.objectstore.ObjectStoreExample;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 
@@ -269,4 +275,145 @@ public abstract class AbstractBatchTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test11Restore() throws Exception {
+        if (batch.file.exists()) {
+            batch.file.delete();
+            batch.file.createNewFile();
+        }
+        batch.getHintFile().delete();
+        byte[] bytes = new byte[5];
+        bytes[2] = 20;
+        long pos1 = batch.write("key1", bytes);
+        long pos2 = batch.write("key2", bytes);
+        batch.delete(pos1);
+        long validSize = batch.validSize();
+        batch.close();
+        assertTrue(batch.getHintFile().exists());
+
+        AbstractFileBatch restored = getBatch(ObjectStoreExample.getOrCreatePath());
+        long pos3 = restored.write("key3", bytes);
+        Map<String, Long> positions = restored.restore();
+        assertEquals(2, positions.size());
+        assertFalse(positions.containsKey("key1"));
+        assertEquals(pos2, positions.get("key2").longValue());
+        assertEquals(pos3, positions.get("key3").longValue());
+        assertEquals(validSize + pos3 - pos2, restored.validSize());
+        restored.close();
+    }
+
+    @Test
+    public void test12WriteGroup() throws Exception {
+        if (batch.file.exists()) {
+            batch.file.delete();
+            batch.file.createNewFile();
+        }
+        long first = batch.write("key0", new byte[]{1, 2});
+        List<String> keys = Arrays.asList("key1", "key2", "key3");
+        List<byte[]> values = Arrays.asList(new byte[]{3}, new byte[]{4, 5, 6}, new byte[0]);
+        List<Long> positions = batch.write(keys, values);
+        batch.sync();
+        assertEquals(keys.size(), positions.size());
+        assertTrue(positions.get(0) > first);
+        for (int i = 0; i < keys.size(); i++) {
+            Optional<byte[]> optional = batch.get(positions.get(i));
+            assertTrue(optional.isPresent());
+            assertArrayEquals(values.get(i), optional.get());
+        }
+        assertEquals(batch.fileSize(), batch.validSize());
+    }
+
+    @Test
+    public void test13GetSeveral() throws Exception {
+        if (batch.file.exists()) {
+            batch.file.delete();
+            batch.file.createNewFile();
+        }
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = new byte[i * 50];
+            Arrays.fill(bytes, (byte) i);
+            positions.add(batch.write("key" + i, bytes));
+        }
+        batch.delete(positions.get(10));
+        List<Optional<byte[]>> values = batch.get(positions);
+        assertEquals(positions.size(), values.size());
+        for (int i = 0; i < positions.size(); i++) {
+            if (i == 10) {
+                assertFalse(values.get(i).isPresent());
+            } else {
+                assertTrue(values.get(i).isPresent());
+                assertEquals(i * 50, values.get(i).get().length);
+                if (i > 0) {
+                    assertEquals((byte) i, values.get(i).get()[i * 50 - 1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test14DeleteSeveral() throws Exception {
+        if (batch.file.exists()) {
+            batch.file.delete();
+            batch.file.createNewFile();
+        }
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            positions.add(batch.write("key" + i, ("value" + i).getBytes()));
+        }
+        long fileSize = batch.fileSize();
+        List<Long> toDelete = new ArrayList<>();
+        for (int i = 99; i >= 0; i -= 3) {
+            toDelete.add(positions.get(i));
+        }
+        toDelete.add(positions.get(0));
+        batch.delete(toDelete);
+        long removed = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            long pos = positions.get(i);
+            boolean shouldBeDeleted = (99 - i) % 3 == 0 || i == 0;
+            assertEquals(shouldBeDeleted, !batch.get(pos).isPresent());
+            if (shouldBeDeleted) {
+                long next = i + 1 < positions.size() ? positions.get(i + 1) : fileSize;
+                removed += next - pos;
+            }
+        }
+        assertEquals(fileSize - removed, batch.validSize());
+        batch.delete(toDelete);
+        assertEquals(fileSize - removed, batch.validSize());
+    }
+
+    @Test
+    public void test15DefragmentWhileWriting() throws Exception {
+        if (batch.file.exists()) {
+            batch.file.delete();
+            batch.file.createNewFile();
+        }
+        Map<String, Long> positions = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            positions.put("key" + i, batch.write("key" + i, ("value" + i).getBytes()));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            batch.delete(positions.remove("key" + i));
+        }
+        BatchDefragmentation defragmentation = batch.startDefragmentation();
+        batch.delete(positions.remove("key1"));
+        positions.put("key100", batch.write("key100", "value100".getBytes()));
+        defragmentation.copy();
+        batch.delete(positions.remove("key3"));
+        batch.delete(positions.remove("key100"));
+        positions.put("key101", batch.write("key101", "value101".getBytes()));
+        Map<String, Long> newPositions = defragmentation.finish();
+        assertEquals(positions.keySet(), newPositions.keySet());
+        for (String key : newPositions.keySet()) {
+            Optional<byte[]> value = batch.get(newPositions.get(key));
+            assertTrue(value.isPresent());
+            assertEquals(key.replace("key", "value"), new String(value.get()));
+        }
+        long validSize = batch.validSize();
+        assertTrue(validSize < batch.fileSize());
+        assertEquals(positions.keySet(), batch.restore().keySet());
+        assertEquals(validSize, batch.validSize());
+    }
+
+}
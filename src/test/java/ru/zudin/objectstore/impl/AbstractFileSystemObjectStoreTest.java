@@ -3,14 +3,19 @@ package ru.zudin.objectstore.impl;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.lang.SerializationUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import ru.zudin.objectstore.Batch;
 import ru.zudin.objectstore.ObjectStoreExample;
+import ru.zudin.objectstore.Serializer;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 
@@ -275,4 +280,739 @@ public abstract class AbstractFileSystemObjectStoreTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test12ScanHints() throws Exception {
+        store.deleteFiles();
+        String str = "Ground control to Major Tom ";
+        Map<String, String> guids = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String s = str + i;
+            String guid = store.put(s);
+            if (i % 3 == 0) {
+                removed.add(guid);
+            } else {
+                guids.put(guid, s);
+            }
+        }
+        store.delete(removed);
+        store.close();
+        for (Batch batch : store.getBatches()) {
+            File hint = new File(ObjectStoreExample.getOrCreatePath() + batch.getName() + ".hint");
+            assertTrue(hint.exists());
+        }
+        FileSystemObjectStore newStore = buildStore();
+        try {
+            for (String guid : guids.keySet()) {
+                Optional<Object> optional = newStore.get(guid);
+                assertTrue(optional.isPresent());
+                assertEquals(guids.get(guid), optional.get());
+            }
+            for (String guid : removed) {
+                assertFalse(newStore.get(guid).isPresent());
+            }
+            for (Batch batch : newStore.getBatches()) {
+                Batch old = store.getBatches().get(store.getBatches().indexOf(batch));
+                assertEquals(old.validSize(), batch.validSize());
+                assertEquals(old.fileSize(), batch.fileSize());
+            }
+        } finally {
+            newStore.close();
+        }
+    }
+
+    @Test
+    public void test13Open() throws Exception {
+        store.deleteFiles();
+        String str = "This is major Tom to ground control ";
+        Map<String, String> guids = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String s = str + i;
+            guids.put(store.put(s), s);
+        }
+        store.close();
+        FileSystemObjectStore newStore = buildStore().open();
+        try {
+            assertEquals(store.getBatches().size(), newStore.getBatches().size());
+            for (String guid : guids.keySet()) {
+                Optional<Object> optional = newStore.get(guid);
+                assertTrue(optional.isPresent());
+                assertEquals(guids.get(guid), optional.get());
+            }
+        } finally {
+            newStore.close();
+        }
+    }
+
+    @Test
+    public void test14Concurrent() throws Exception {
+        FileSystemObjectStore store = new FileSystemObjectStore(ObjectStoreExample.getOrCreatePath(),
+                getType(), 4, 0.33, 1024 * 128);
+        testConcurrent(store);
+    }
+
+    @Test
+    public void test15GroupDurability() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(4)
+                .fileSizeThreshold(1024 * 128)
+                .durability(FileSystemObjectStore.Durability.GROUP)
+                .build();
+        testConcurrent(store);
+    }
+
+    @Test
+    public void test16IntervalDurability() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .durability(FileSystemObjectStore.Durability.INTERVAL)
+                .syncInterval(10)
+                .build();
+        testConcurrent(store);
+    }
+
+    @Test
+    public void test17PutAll() throws Exception {
+        FileSystemObjectStore store = new FileSystemObjectStore(ObjectStoreExample.getOrCreatePath(),
+                getType(), 4, 0.33, 1024 * 64);
+        try {
+            store.deleteFiles();
+            int initSize = store.getBatches().size();
+            List<String> values = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                values.add("All at once " + i);
+            }
+            List<String> guids = store.putAll(values);
+            assertEquals(values.size(), guids.size());
+            assertTrue(store.getBatches().size() > initSize);
+            for (int i = 0; i < guids.size(); i++) {
+                Optional<Object> optional = store.get(guids.get(i));
+                assertTrue(optional.isPresent());
+                assertEquals(values.get(i), optional.get());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void test18GetAll() throws Exception {
+        store.deleteFiles();
+        Map<String, String> guids = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String value = "Get me with friends " + i;
+            String guid = store.put(value);
+            if (i % 5 == 0) {
+                removed.add(guid);
+            } else {
+                guids.put(guid, value);
+            }
+        }
+        store.delete(removed);
+        List<String> requested = new ArrayList<>(guids.keySet());
+        requested.addAll(removed);
+        requested.add("unknown-guid");
+        Collections.shuffle(requested);
+        Map<String, Object> found = store.getAll(requested);
+        assertEquals(guids.size(), found.size());
+        for (String guid : guids.keySet()) {
+            assertEquals(guids.get(guid), found.get(guid));
+        }
+    }
+
+    @Test
+    public void test19BackgroundCompaction() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(2)
+                .fileSizeThreshold(1024 * 1024)
+                .build();
+        try {
+            store.deleteFiles();
+            Map<String, String> guids = new HashMap<>();
+            List<String> removed = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                String value = "Compact me in background " + i;
+                String guid = store.put(value);
+                if (i % 3 == 0) {
+                    guids.put(guid, value);
+                } else {
+                    removed.add(guid);
+                }
+            }
+            long sizeBefore = store.getBatches().stream().mapToLong(Batch::fileSize).sum();
+            store.delete(removed);
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), store.get(guid).get());
+            }
+            long deadline = System.currentTimeMillis() + 30000;
+            while (store.getBatches().stream().anyMatch(Batch::isDefragmentationNeeded)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            for (Batch batch : store.getBatches()) {
+                assertFalse(batch.isDefragmentationNeeded());
+            }
+            assertTrue(store.getBatches().stream().mapToLong(Batch::fileSize).sum() < sizeBefore / 2);
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), store.get(guid).get());
+            }
+            for (String guid : removed) {
+                assertFalse(store.get(guid).isPresent());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void test20OffHeapIndex() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(4)
+                .fileSizeThreshold(1024 * 128)
+                .indexType(FileSystemObjectStore.IndexType.OFF_HEAP)
+                .build();
+        testConcurrent(store);
+    }
+
+    @Test
+    public void test21PersistentIndex() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        FileSystemObjectStore.Builder builder = FileSystemObjectStore.builder(path)
+                .batchType(getType())
+                .initBatchSize(4)
+                .fileSizeThreshold(1024 * 128)
+                .indexType(FileSystemObjectStore.IndexType.PERSISTENT);
+        FileSystemObjectStore store = builder.build();
+        store.deleteFiles();
+        Map<String, String> guids = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String value = "Keep my position on disk " + i;
+            String guid = store.put(value);
+            if (i % 4 == 0) {
+                removed.add(guid);
+            } else {
+                guids.put(guid, value);
+            }
+        }
+        store.delete(removed);
+        store.close();
+        assertTrue(new File(path + "index" + File.separator + "index.meta").exists());
+        FileSystemObjectStore loaded = builder.build().open();
+        try {
+            assertFalse(new File(path + "index" + File.separator + "index.meta").exists());
+            assertEquals(guids.size(), loaded.getIndex().size());
+            assertEquals(store.getBatches().size(), loaded.getBatches().size());
+            for (int i = 0; i < store.getBatches().size(); i++) {
+                Batch batch = store.getBatches().get(i);
+                assertEquals(batch, loaded.getBatches().get(i));
+                assertEquals(batch.validSize(), loaded.getBatches().get(i).validSize());
+            }
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), loaded.get(guid).get());
+            }
+            for (String guid : removed) {
+                assertFalse(loaded.get(guid).isPresent());
+            }
+        } finally {
+            loaded.close();
+        }
+        FileSystemObjectStore notClosed = builder.build();
+        guids.put(notClosed.put("Written without close"), "Written without close");
+        notClosed.close();
+        //store, which was not closed, leaves index without meta file
+        new File(path + "index" + File.separator + "index.meta").delete();
+        FileSystemObjectStore rebuilt = builder.build();
+        try {
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), rebuilt.get(guid).get());
+            }
+        } finally {
+            rebuilt.close();
+        }
+    }
+
+    @Test
+    public void test23Serializers() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        FileSystemObjectStore javaStore = FileSystemObjectStore.builder(path)
+                .batchType(getType())
+                .initBatchSize(2)
+                .build();
+        javaStore.deleteFiles();
+        String javaGuid = javaStore.put("Written by Java serialization");
+        String legacyGuid = UUID.randomUUID().toString();
+        javaStore.getBatches().get(0).write(legacyGuid, SerializationUtils.serialize("Written without id"));
+        javaStore.close();
+        FileSystemObjectStore store = FileSystemObjectStore.builder(path)
+                .batchType(getType())
+                .initBatchSize(2)
+                .serializer(new StringSerializer())
+                .build();
+        String guid = store.put("Written by custom serializer");
+        try {
+            assertEquals("Written by custom serializer", store.get(guid).get());
+            assertEquals("Written by Java serialization", store.get(javaGuid).get());
+            assertEquals("Written without id", store.get(legacyGuid).get());
+            Map<String, Object> found = store.getAll(Arrays.asList(guid, javaGuid, legacyGuid));
+            assertEquals(3, found.size());
+        } finally {
+            store.close();
+        }
+        FileSystemObjectStore unknown = FileSystemObjectStore.builder(path)
+                .batchType(getType())
+                .initBatchSize(2)
+                .build();
+        try {
+            assertEquals("Written by Java serialization", unknown.get(javaGuid).get());
+            try {
+                unknown.get(guid);
+                fail("Object of unknown serializer is read");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("Unknown serializer"));
+            }
+        } finally {
+            unknown.close();
+        }
+        try {
+            FileSystemObjectStore.builder(path).registerSerializer(new Serializer() {
+                @Override
+                public byte getId() {
+                    return 10;
+                }
+
+                @Override
+                public void serialize(Serializable object, OutputStream out) {
+                }
+
+                @Override
+                public Object deserialize(InputStream in) {
+                    return null;
+                }
+            }).serializer(new StringSerializer()).build();
+            fail("Serializers with the same id are accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test24PutBytes() throws Exception {
+        store.deleteFiles();
+        byte[] bytes = "{\"name\": \"raw\"}".getBytes(StandardCharsets.UTF_8);
+        String guid = store.putBytes(bytes);
+        String empty = store.putBytes(new byte[0]);
+        String object = store.put("Serialized object");
+        assertArrayEquals(bytes, store.getBytes(guid).get());
+        assertArrayEquals(new byte[0], store.getBytes(empty).get());
+        assertArrayEquals(bytes, (byte[]) store.get(guid).get());
+        assertEquals("Serialized object", store.get(object).get());
+        try {
+            store.getBytes(object);
+            fail("Serialized object is returned as bytes");
+        } catch (IOException e) {
+            // expected
+        }
+        store.delete(guid);
+        assertFalse(store.getBytes(guid).isPresent());
+        store.close();
+        store = buildStore();
+        assertArrayEquals(new byte[0], store.getBytes(empty).get());
+    }
+
+    @Test
+    public void test25ClassDictionary() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        List<HashMap<Integer, List<String>>> objects = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            List<String> list = Arrays.asList("Test string " + i, "Other string " + i);
+            HashMap<Integer, List<String>> map = new HashMap<>();
+            map.put(i, new ArrayList<>(list));
+            objects.add(map);
+        }
+        store.deleteFiles();
+        store.putAll(objects);
+        long javaSize = store.getBatches().stream().mapToLong(Batch::validSize).sum();
+        store.close();
+        FileSystemObjectStore.Builder builder = FileSystemObjectStore.builder(path)
+                .batchType(getType())
+                .classDictionary();
+        FileSystemObjectStore dictionaryStore = builder.build();
+        Map<String, Object> guids = new HashMap<>();
+        try {
+            dictionaryStore.deleteFiles();
+            for (HashMap<Integer, List<String>> object : objects) {
+                guids.put(dictionaryStore.put(object), object);
+            }
+            long dictionarySize = dictionaryStore.getBatches().stream().mapToLong(Batch::validSize).sum();
+            assertTrue(dictionarySize < javaSize / 2);
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), dictionaryStore.get(guid).get());
+            }
+        } finally {
+            dictionaryStore.close();
+        }
+        assertTrue(new File(path + "classes.dict").exists());
+        store = buildStore();
+        assertEquals(guids, store.getAll(guids.keySet()));
+    }
+
+    @Test
+    public void test26Compression() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("Repeated part of value ").append(i % 10);
+        }
+        String big = builder.toString();
+        store.deleteFiles();
+        store.put(big);
+        long plainSize = store.getBatches().stream().mapToLong(Batch::validSize).sum();
+        store.deleteFiles();
+        store.close();
+        FileSystemObjectStore compressed = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .compression(1024)
+                .build();
+        Map<String, Object> guids = new HashMap<>();
+        String bytesGuid;
+        try {
+            compressed.deleteFiles();
+            guids.put(compressed.put(big), big);
+            assertTrue(compressed.getBatches().stream().mapToLong(Batch::validSize).sum() < plainSize / 4);
+            guids.put(compressed.put("Small value"), "Small value");
+            List<String> values = Arrays.asList(big + 1, big + 2, "Small value 3");
+            List<String> putAll = compressed.putAll(values);
+            for (int i = 0; i < values.size(); i++) {
+                guids.put(putAll.get(i), values.get(i));
+            }
+            bytesGuid = compressed.putBytes(big.getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(big.getBytes(StandardCharsets.UTF_8), compressed.getBytes(bytesGuid).get());
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), compressed.get(guid).get());
+            }
+        } finally {
+            compressed.close();
+        }
+        store = buildStore();
+        assertEquals(guids, store.getAll(guids.keySet()));
+        assertArrayEquals(big.getBytes(StandardCharsets.UTF_8), store.getBytes(bytesGuid).get());
+    }
+
+    @Test
+    public void test27ReadCache() throws Exception {
+        FileSystemObjectStore cached = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(2)
+                .fileSizeThreshold(1024 * 16)
+                .readCache(1024 * 4)
+                .build();
+        try {
+            cached.deleteFiles();
+            Map<String, String> guids = new HashMap<>();
+            for (int i = 0; i < 500; i++) {
+                String value = "Hot value " + i;
+                guids.put(cached.put(value), value);
+            }
+            String hot = guids.keySet().iterator().next();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(guids.get(hot), cached.get(hot).get());
+            }
+            assertEquals(1, cached.getCacheStats().missCount());
+            assertEquals(9, cached.getCacheStats().hitCount());
+            assertEquals(guids, cached.getAll(guids.keySet()));
+            assertTrue(cached.getCacheStats().evictionCount() > 0);
+            assertEquals(guids, cached.getAll(guids.keySet()));
+            cached.delete(hot);
+            assertFalse(cached.get(hot).isPresent());
+            List<String> removed = new ArrayList<>(guids.keySet()).subList(0, 100);
+            removed.forEach(guids::remove);
+            cached.delete(removed);
+            for (String guid : removed) {
+                assertFalse(cached.get(guid).isPresent());
+            }
+            assertEquals(guids, cached.getAll(guids.keySet()));
+        } finally {
+            cached.close();
+        }
+        assertEquals(0, store.getCacheStats().requestCount());
+    }
+
+    @Test
+    public void test28ConsistentPlacement() throws Exception {
+        FileSystemObjectStore store = new FileSystemObjectStore(ObjectStoreExample.getOrCreatePath(),
+                getType(), 4, 0.33, 1024 * 64);
+        try {
+            store.deleteFiles();
+            Map<String, Batch> placed = new HashMap<>();
+            int i = 0;
+            while (store.getBatches().size() == 4) {
+                String guid = store.put("Find my home " + i++);
+                placed.put(guid, store.getIndex().get(guid).getBatch());
+            }
+            awaitRebalance(store);
+            List<Batch> before = new ArrayList<>(store.getBatches());
+            for (String guid : placed.keySet()) {
+                placed.put(guid, store.getIndex().get(guid).getBatch());
+            }
+            while (store.getBatches().size() == before.size()) {
+                store.put("Find my home " + i++);
+            }
+            awaitRebalance(store);
+            int moved = 0;
+            for (String guid : placed.keySet()) {
+                Batch batch = store.getIndex().get(guid).getBatch();
+                assertEquals(store.getHomeBatch(guid), batch);
+                if (!batch.equals(placed.get(guid))) {
+                    assertFalse(before.contains(batch));
+                    moved++;
+                }
+            }
+            assertTrue(moved > 0);
+            assertTrue(moved < placed.size() * (store.getBatches().size() - before.size()) / store.getBatches().size() * 1.3);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void test29ResumeRebalance() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        FileSystemObjectStore store = new FileSystemObjectStore(path, getType(), 4, 0.33, 1024 * 64);
+        Map<String, String> guids = new HashMap<>();
+        try {
+            store.deleteFiles();
+            int i = 0;
+            while (store.getBatches().size() == 4) {
+                String value = "Move me later " + i++;
+                guids.put(store.put(value), value);
+            }
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), store.get(guid).get());
+            }
+        } finally {
+            store.close();
+        }
+        FileSystemObjectStore reopened = new FileSystemObjectStore(path, getType(), 4, 0.33, 1024 * 64).open();
+        try {
+            awaitRebalance(reopened);
+            assertFalse(new File(path + "rebalance.state").exists());
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), reopened.get(guid).get());
+                assertEquals(reopened.getHomeBatch(guid), reopened.getIndex().get(guid).getBatch());
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void test30LeastLoadedPlacement() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(4)
+                .placement(FileSystemObjectStore.Placement.LEAST_LOADED)
+                .build();
+        try {
+            store.deleteFiles();
+            List<String> guids = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                guids.add(store.put("Put me where it is free " + i));
+            }
+            Batch emptied = store.getBatches().get(0);
+            List<String> removed = new ArrayList<>();
+            for (String guid : guids) {
+                if (store.getIndex().get(guid).getBatch().equals(emptied)) {
+                    removed.add(guid);
+                }
+            }
+            assertTrue(removed.size() > 300);
+            store.delete(removed);
+            int count = 0;
+            for (int i = 0; i < 1000; i++) {
+                String guid = store.put("Put me where it is free " + i);
+                if (store.getIndex().get(guid).getBatch().equals(emptied)) {
+                    count++;
+                }
+            }
+            assertTrue(count > 350);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void test31LeastLoadedRebalance() throws Exception {
+        FileSystemObjectStore store = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(4)
+                .fileSizeThreshold(1024 * 128)
+                .placement(FileSystemObjectStore.Placement.LEAST_LOADED)
+                .build();
+        testConcurrent(store);
+    }
+
+    @Test
+    public void test32ShrinkBatches() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        FileSystemObjectStore store = new FileSystemObjectStore(path, getType(), 4, 0.33, 1024 * 64);
+        Map<String, String> kept = new HashMap<>();
+        try {
+            store.deleteFiles();
+            List<String> removed = new ArrayList<>();
+            int i = 0;
+            while (store.getBatches().size() == 4) {
+                String value = "Shrink me " + i;
+                String guid = store.put(value);
+                if (i++ % 20 == 0) {
+                    kept.put(guid, value);
+                } else {
+                    removed.add(guid);
+                }
+            }
+            awaitRebalance(store);
+            assertTrue(store.getBatches().size() >= 8);
+            store.delete(removed);
+            long deadline = System.currentTimeMillis() + 30000;
+            while ((store.getBatches().size() > 4 || store.isRebalancing()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, store.getBatches().size());
+            assertFalse(store.isRebalancing());
+            File[] files = new File(path).listFiles((dir, name) -> name.matches("batch-\\d+\\.[^.]+"));
+            assertTrue(files.length <= 4);
+            for (String guid : kept.keySet()) {
+                assertEquals(kept.get(guid), store.get(guid).get());
+                assertEquals(store.getHomeBatch(guid), store.getIndex().get(guid).getBatch());
+            }
+            for (int j = 0; j < 100; j++) {
+                String value = "Put me after shrink " + j;
+                kept.put(store.put(value), value);
+            }
+        } finally {
+            store.close();
+        }
+        FileSystemObjectStore reopened = new FileSystemObjectStore(path, getType(), 4, 0.33, 1024 * 64).open();
+        try {
+            assertEquals(4, reopened.getBatches().size());
+            for (String guid : kept.keySet()) {
+                assertEquals(kept.get(guid), reopened.get(guid).get());
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void test33DeleteFromDroppedBatch() throws Exception {
+        store.deleteFiles();
+        String value = "Moved before delete";
+        String guid = store.put(value);
+        FileSystemObjectStore.Position position = store.getIndex().get(guid);
+        Batch from = position.getBatch();
+        Batch to = store.getBatches().stream()
+                .filter(batch -> !batch.equals(from))
+                .findFirst()
+                .get();
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        Thread deleter = new Thread(() -> {
+            try {
+                store.delete(Collections.singletonList(guid));
+            } catch (Exception e) {
+                errors.add(e);
+            }
+        });
+        BatchLock lock = store.getLock(from);
+        lock.lockWrite();
+        try {
+            deleter.start();
+            while (deleter.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            // move object and drop its batch, as migration of retired batch does while delete waits for lock
+            long pos = to.write(guid, from.get(position.getPos()).get());
+            from.delete(position.getPos());
+            store.getIndex().put(guid, new FileSystemObjectStore.Position(to, pos));
+            store.getBatches().remove(from);
+            from.close();
+            File[] files = new File(ObjectStoreExample.getOrCreatePath())
+                    .listFiles((dir, name) -> name.startsWith(from.getName()));
+            assertTrue(files.length > 0);
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        } finally {
+            lock.unlockWrite();
+        }
+        deleter.join();
+        assertTrue(errors.isEmpty());
+        assertFalse(store.get(guid).isPresent());
+    }
+
+    private static void awaitRebalance(FileSystemObjectStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (store.isRebalancing() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(store.isRebalancing());
+    }
+
+    private void testConcurrent(FileSystemObjectStore store) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            store.deleteFiles();
+            List<Future<Map<String, String>>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    Map<String, String> guids = new HashMap<>();
+                    for (int i = 0; i < 1000; i++) {
+                        String value = "Thread " + thread + " value " + i;
+                        String guid = store.put(value);
+                        assertEquals(value, store.get(guid).get());
+                        if (i % 3 == 0) {
+                            store.delete(guid);
+                            assertFalse(store.get(guid).isPresent());
+                        } else {
+                            guids.put(guid, value);
+                        }
+                    }
+                    return guids;
+                }));
+            }
+            for (Future<Map<String, String>> future : futures) {
+                Map<String, String> guids = future.get();
+                for (String guid : guids.keySet()) {
+                    Optional<Object> optional = store.get(guid);
+                    assertTrue(optional.isPresent());
+                    assertEquals(guids.get(guid), optional.get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            store.close();
+        }
+    }
+
+
+    private static class StringSerializer implements Serializer {
+
+        @Override
+        public byte getId() {
+            return 10;
+        }
+
+        @Override
+        public void serialize(Serializable object, OutputStream out) throws IOException {
+            out.write(((String) object).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Object deserialize(InputStream in) throws IOException {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.zudin.objectstore.Batch;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public abstract class AbstractIndexTest {
+
+    private List<Batch> batches;
+    private Index index;
+
+    @Before
+    public void setUp() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        batches = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batches.add(new BinaryBatch(path, "index-test-" + i, 0.33, 1024));
+        }
+        index = createIndex(batches::indexOf, batches::get);
+    }
+
+    protected abstract Index createIndex(ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf);
+
+    @Test
+    public void test1PutGetRemove() throws Exception {
+        String guid = UUID.randomUUID().toString();
+        assertNull(index.get(guid));
+        FileSystemObjectStore.Position position = new FileSystemObjectStore.Position(batches.get(2), 12345);
+        assertNull(index.put(guid, position));
+        assertEquals(position, index.get(guid));
+        assertTrue(index.containsKey(guid));
+        FileSystemObjectStore.Position moved = new FileSystemObjectStore.Position(batches.get(3), UuidIndex.MAX_POS);
+        assertEquals(position, index.put(guid, moved));
+        assertFalse(index.remove(guid, position));
+        assertTrue(index.remove(guid, moved));
+        assertNull(index.get(guid));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void test2NotUuid() throws Exception {
+        FileSystemObjectStore.Position position = new FileSystemObjectStore.Position(batches.get(0), 1);
+        String upper = UUID.randomUUID().toString().toUpperCase();
+        index.put("not-a-uuid", position);
+        index.put(upper, position);
+        assertEquals(position, index.get("not-a-uuid"));
+        assertEquals(position, index.get(upper));
+        assertNull(index.get(upper.toLowerCase()));
+        assertEquals(2, index.size());
+        assertEquals(position, index.remove("not-a-uuid"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void test3Random() throws Exception {
+        Map<String, FileSystemObjectStore.Position> expected = new HashMap<>();
+        List<String> guids = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            int action = random.nextInt(10);
+            if (action < 6 || guids.isEmpty()) {
+                String guid = UUID.randomUUID().toString();
+                FileSystemObjectStore.Position position = new FileSystemObjectStore.Position(
+                        batches.get(random.nextInt(batches.size())), random.nextInt(Integer.MAX_VALUE));
+                assertEquals(expected.put(guid, position), index.put(guid, position));
+                guids.add(guid);
+            } else {
+                String guid = guids.remove(random.nextInt(guids.size()));
+                assertEquals(expected.remove(guid), index.remove(guid));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (String guid : expected.keySet()) {
+            assertEquals(expected.get(guid), index.get(guid));
+        }
+    }
+
+    @Test
+    public void test4Concurrent() throws Exception {
+        int threads = 8;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            Batch batch = batches.get(t % batches.size());
+            workers.add(new Thread(() -> {
+                try {
+                    List<String> own = new ArrayList<>();
+                    for (int i = 0; i < 20000; i++) {
+                        String guid = UUID.randomUUID().toString();
+                        index.put(guid, new FileSystemObjectStore.Position(batch, i));
+                        own.add(guid);
+                    }
+                    for (int i = 0; i < own.size(); i++) {
+                        assertEquals(new FileSystemObjectStore.Position(batch, i), index.get(own.get(i)));
+                        if (i % 2 == 0) {
+                            assertNotNull(index.remove(own.get(i)));
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * 10000, index.size());
+    }
+}
@@ -0,0 +1,78 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.Test;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class BinaryV2BatchTest extends AbstractBatchTest {
+    @Override
+    protected AbstractFileBatch getBatch(String path) {
+        return new BinaryBatch(path, "test-batch.bnos", 0.33, 1024 * 1024 * 200, BinaryFormat.V2);
+    }
+
+    @Test
+    public void test16ConvertFormat() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        BinaryBatch old = new BinaryBatch(path, "test-format-batch.bnos", 0.33, 1024 * 1024 * 200);
+        old.file.delete();
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            String guid = i % 2 == 0 ? UUID.randomUUID().toString() : "key" + i;
+            values.put(guid, "value" + i);
+            old.write(guid, ("value" + i).getBytes());
+        }
+        old.close();
+        long oldSize = old.fileSize();
+        BinaryBatch batch = new BinaryBatch(path, "test-format-batch.bnos", 0.33, 1024 * 1024 * 200, BinaryFormat.V2);
+        try {
+            assertSame(BinaryFormat.V1, batch.fileFormat());
+            assertEquals(values.keySet(), batch.restore().keySet());
+            values.put("appended", "appended value");
+            batch.write("appended", "appended value".getBytes());
+            Map<String, Long> positions = batch.defragment();
+            assertSame(BinaryFormat.V2, batch.fileFormat());
+            assertTrue(batch.fileSize() < oldSize);
+            assertEquals(values.keySet(), positions.keySet());
+            for (String guid : positions.keySet()) {
+                assertEquals(values.get(guid), new String(batch.get(positions.get(guid)).get()));
+            }
+            assertEquals(positions, batch.restore());
+        } finally {
+            batch.close();
+        }
+    }
+
+    @Test
+    public void test17Checksum() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        BinaryBatch batch = new BinaryBatch(path, "test-format-batch.bnos", 0.33, 1024 * 1024 * 200, BinaryFormat.V2);
+        batch.file.delete();
+        try {
+            String guid = UUID.randomUUID().toString();
+            long pos = batch.write(guid, "checked value".getBytes());
+            long size = batch.fileSize();
+            batch.close();
+            try (RandomAccessFile file = new RandomAccessFile(batch.file, "rw")) {
+                file.seek(size - 1);
+                file.write('X');
+            }
+            try {
+                batch.get(pos);
+                fail("Damaged value is read");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("Checksum"));
+            }
+        } finally {
+            batch.close();
+        }
+    }
+}
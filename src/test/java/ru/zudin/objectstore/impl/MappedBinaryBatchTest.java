@@ -0,0 +1,62 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.Test;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class MappedBinaryBatchTest extends AbstractBatchTest {
+    @Override
+    protected AbstractFileBatch getBatch(String path) {
+        return new MappedBinaryBatch(path, "test-batch.bnos", 0.33, 1024 * 1024 * 200);
+    }
+
+    @Test
+    public void test16ReadMappedRegions() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        long regionSize = 64 * 1024;
+        MappedBinaryBatch batch = new MappedBinaryBatch(path, "test-mapped-batch.bnos", 0.33, 1024 * 1024 * 200, regionSize);
+        batch.file.delete();
+        try {
+            Random random = new Random(42);
+            List<byte[]> values = new ArrayList<>();
+            List<Long> positions = new ArrayList<>();
+            while (batch.fileSize() <= 2 * 1024 * 1024) {
+                byte[] value = new byte[1 + random.nextInt(3000)];
+                random.nextBytes(value);
+                values.add(value);
+                positions.add(batch.write("key" + values.size(), value));
+            }
+            int crossing = 0;
+            for (int i = 0; i < positions.size(); i++) {
+                long end = i + 1 < positions.size() ? positions.get(i + 1) : batch.fileSize();
+                if (positions.get(i) / regionSize != (end - 1) / regionSize) {
+                    crossing++;
+                }
+                assertArrayEquals(values.get(i), batch.get(positions.get(i)).get());
+            }
+            assertTrue(crossing > 0);
+            assertEquals(batch.fileSize(), batch.mappedLength());
+            byte[] tail = "not mapped yet".getBytes();
+            long pos = batch.write("tail", tail);
+            assertArrayEquals(tail, batch.get(pos).get());
+            assertTrue(batch.mappedLength() < batch.fileSize());
+            for (int i = 0; i < 400; i++) {
+                batch.write("more" + i, new byte[3000]);
+            }
+            assertArrayEquals(tail, batch.get(pos).get());
+            assertEquals(batch.fileSize(), batch.mappedLength());
+        } finally {
+            batch.close();
+            batch.file.delete();
+        }
+    }
+}
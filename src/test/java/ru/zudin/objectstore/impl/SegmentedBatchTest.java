@@ -0,0 +1,216 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.zudin.objectstore.BatchDefragmentation;
+import ru.zudin.objectstore.BatchIterator;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class SegmentedBatchTest {
+
+    private static final String NAME = "test-batch.slog";
+
+    private String path;
+    private SegmentedBatch batch;
+
+    @Before
+    public void setUp() throws Exception {
+        path = ObjectStoreExample.getOrCreatePath();
+        for (File file : files()) {
+            file.delete();
+        }
+        batch = getBatch();
+    }
+
+    @After
+    public void close() throws Exception {
+        batch.close();
+    }
+
+    private SegmentedBatch getBatch() {
+        return new SegmentedBatch(path, NAME, 0.33, 64 * 1024);
+    }
+
+    private File[] files() {
+        return new File(path).listFiles((dir, name) -> name.startsWith(NAME));
+    }
+
+    private Map<String, Long> fill(int count) throws Exception {
+        Map<String, Long> positions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            positions.put("key" + i, batch.write("key" + i, ("value" + i).getBytes()));
+        }
+        return positions;
+    }
+
+    @Test
+    public void test1WriteGetDelete() throws Exception {
+        long pos = batch.write("12345", new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, batch.get(pos).get());
+        batch.delete(pos);
+        assertFalse(batch.get(pos).isPresent());
+        BatchIterator iterator = batch.createIterator();
+        assertFalse(iterator.hasNext());
+        iterator.close();
+    }
+
+    @Test
+    public void test2DeleteAppendsTombstone() throws Exception {
+        long pos = batch.write("12345", "value".getBytes());
+        batch.sync();
+        File file = new File(path + NAME);
+        byte[] before = Files.readAllBytes(file.toPath());
+        batch.delete(pos);
+        batch.sync();
+        byte[] after = Files.readAllBytes(file.toPath());
+        assertTrue(after.length > before.length);
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+        assertEquals(after.length, batch.fileSize());
+        assertEquals(12, batch.validSize());
+    }
+
+    @Test
+    public void test3SealAndRestore() throws Exception {
+        Map<String, Long> positions = fill(2000);
+        for (int i = 0; i < 2000; i += 3) {
+            batch.delete(positions.remove("key" + i));
+        }
+        long sealed = Arrays.stream(files()).filter(file -> file.getName().matches(".*\\.\\d+")).count();
+        assertTrue(sealed > 1);
+        long validSize = batch.validSize();
+        batch.close();
+        assertTrue(new File(path + NAME + ".hint").exists());
+        assertEquals(positions, batch.restore());
+        assertEquals(validSize, batch.validSize());
+        batch.close();
+        new File(path + NAME + ".hint").delete();
+        batch = getBatch();
+        assertEquals(positions, batch.restore());
+        assertEquals(validSize, batch.validSize());
+        for (String key : positions.keySet()) {
+            assertEquals(key.replace("key", "value"), new String(batch.get(positions.get(key)).get()));
+        }
+    }
+
+    @Test
+    public void test4MergeWhileWriting() throws Exception {
+        Map<String, Long> positions = fill(100);
+        for (int i = 0; i < 100; i += 2) {
+            batch.delete(positions.remove("key" + i));
+        }
+        BatchDefragmentation defragmentation = batch.startDefragmentation();
+        batch.delete(positions.remove("key1"));
+        positions.put("key100", batch.write("key100", "value100".getBytes()));
+        defragmentation.copy();
+        batch.delete(positions.remove("key3"));
+        batch.delete(positions.remove("key100"));
+        positions.put("key101", batch.write("key101", "value101".getBytes()));
+        Map<String, Long> newPositions = defragmentation.finish();
+        assertEquals(positions.keySet(), newPositions.keySet());
+        for (String key : newPositions.keySet()) {
+            Optional<byte[]> value = batch.get(newPositions.get(key));
+            assertTrue(value.isPresent());
+            assertEquals(key.replace("key", "value"), new String(value.get()));
+        }
+        long validSize = batch.validSize();
+        assertTrue(validSize < batch.fileSize());
+        batch.close();
+        batch = getBatch();
+        assertEquals(newPositions, batch.restore());
+        assertEquals(validSize, batch.validSize());
+    }
+
+    @Test
+    public void test5RecoverIncompleteRecord() throws Exception {
+        Map<String, Long> positions = fill(10);
+        batch.delete(positions.remove("key5"));
+        batch.sync();
+        long length = new File(path + NAME).length();
+        byte[] record = BinaryFormat.V2.encode(true, "key10", "value10".getBytes());
+        try (FileOutputStream out = new FileOutputStream(path + NAME, true)) {
+            out.write(Arrays.copyOf(record, record.length - 3));
+        }
+        batch = getBatch();
+        assertEquals(positions, batch.restore());
+        assertEquals(length, new File(path + NAME).length());
+        positions.put("key10", batch.write("key10", "value10".getBytes()));
+        assertEquals(positions, batch.restore());
+    }
+
+    @Test
+    public void test6RecoverMergedSegments() throws Exception {
+        Map<String, Long> positions = fill(1000);
+        for (int i = 0; i < 1000; i += 2) {
+            batch.delete(positions.remove("key" + i));
+        }
+        batch.sync();
+        File copies = new File(path + "segments-copy");
+        copies.mkdirs();
+        List<File> sealed = new ArrayList<>();
+        for (File file : files()) {
+            if (file.getName().matches(".*\\.\\d+")) {
+                sealed.add(file);
+                Files.copy(file.toPath(), new File(copies, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Map<String, Long> newPositions = batch.defragment();
+        assertEquals(positions.keySet(), newPositions.keySet());
+        batch.close();
+        new File(path + NAME + ".hint").delete();
+        for (File file : copies.listFiles()) {
+            Files.move(file.toPath(), new File(path + file.getName()).toPath());
+        }
+        copies.delete();
+        batch = getBatch();
+        assertEquals(newPositions, batch.restore());
+        for (File file : sealed) {
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void test7ReuseSegmentIds() throws Exception {
+        Map<String, Long> positions = new HashMap<>();
+        int maxId = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                String key = "key" + round + "-" + i;
+                positions.put(key, batch.write(key, key.replace("key", "value").getBytes()));
+            }
+            List<String> keys = new ArrayList<>(positions.keySet());
+            for (int i = 0; i < keys.size(); i += 2) {
+                batch.delete(positions.remove(keys.get(i)));
+            }
+            BatchDefragmentation defragmentation = batch.startDefragmentation();
+            defragmentation.copy();
+            batch.delete(positions.remove(keys.get(1)));
+            positions = defragmentation.finish();
+            for (File file : files()) {
+                if (file.getName().matches(".*\\.\\d+")) {
+                    maxId = Math.max(maxId, Integer.parseInt(file.getName().substring(NAME.length() + 1)));
+                }
+            }
+        }
+        assertTrue(maxId < 16);
+        batch.close();
+        new File(path + NAME + ".hint").delete();
+        batch = getBatch();
+        assertEquals(positions, batch.restore());
+        for (String key : positions.keySet()) {
+            assertEquals(key.replace("key", "value"), new String(batch.get(positions.get(key)).get()));
+        }
+    }
+}
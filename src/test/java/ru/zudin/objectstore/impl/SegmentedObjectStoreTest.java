@@ -0,0 +1,12 @@
+package ru.zudin.objectstore.impl;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class SegmentedObjectStoreTest extends AbstractFileSystemObjectStoreTest {
+    @Override
+    protected FileSystemObjectStore.BatchType getType() {
+        return FileSystemObjectStore.BatchType.SEGMENTED;
+    }
+}
@@ -0,0 +1,107 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.Test;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class SortedBinaryBatchTest extends AbstractBatchTest {
+    @Override
+    protected AbstractFileBatch getBatch(String path) {
+        return new SortedBinaryBatch(path, "test-batch.bnos", 0.33, 1024 * 1024 * 200);
+    }
+
+    @Test
+    public void test16Find() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        SortedBinaryBatch batch = new SortedBinaryBatch(path, "test-sorted-batch.bnos", 0.33, 1024 * 1024);
+        batch.file.delete();
+        Map<String, Long> positions = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            String guid = UUID.randomUUID().toString();
+            positions.put(guid, batch.write(guid, new byte[random.nextInt(200)]));
+        }
+        assertTrue(batch.isDefragmentationNeeded());
+        positions = batch.defragment();
+        assertFalse(batch.isDefragmentationNeeded());
+        for (int i = 0; i < 100; i++) {
+            String guid = UUID.randomUUID().toString();
+            positions.put(guid, batch.write(guid, new byte[random.nextInt(200)]));
+        }
+        List<String> removed = new ArrayList<>();
+        for (String guid : positions.keySet()) {
+            if (random.nextInt(10) == 0) {
+                removed.add(guid);
+            }
+        }
+        for (String guid : removed) {
+            batch.delete(positions.remove(guid));
+        }
+        batch.close();
+        batch = new SortedBinaryBatch(path, "test-sorted-batch.bnos", 0.33, 1024 * 1024);
+        try {
+            for (String guid : positions.keySet()) {
+                assertEquals(positions.get(guid), batch.find(guid).get());
+            }
+            for (String guid : removed) {
+                assertFalse(batch.find(guid).isPresent());
+            }
+            assertFalse(batch.find(UUID.randomUUID().toString()).isPresent());
+            assertFalse(batch.find("").isPresent());
+            String guid = UUID.randomUUID().toString();
+            long pos = batch.write(guid, new byte[10]);
+            assertEquals(pos, (long) batch.find(guid).get());
+        } finally {
+            batch.close();
+        }
+    }
+
+    @Test
+    public void test17FindInLongTail() throws Exception {
+        String path = ObjectStoreExample.getOrCreatePath();
+        SortedBinaryBatch batch = new SortedBinaryBatch(path, "test-sorted-batch.bnos", 0.33, 1024 * 1024 * 200);
+        batch.file.delete();
+        Map<String, Long> positions = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String guid = UUID.randomUUID().toString();
+            positions.put(guid, batch.write(guid, new byte[random.nextInt(200)]));
+        }
+        assertTrue(batch.fileSize() > 10 * BinaryBatch.WINDOW_SIZE);
+        List<String> removed = new ArrayList<>();
+        for (String guid : positions.keySet()) {
+            if (random.nextInt(10) == 0) {
+                removed.add(guid);
+            }
+        }
+        for (String guid : removed) {
+            batch.delete(positions.remove(guid));
+        }
+        String rewritten = removed.remove(0);
+        positions.put(rewritten, batch.write(rewritten, new byte[10]));
+        try {
+            for (int i = 0; i < 2; i++) {
+                for (String guid : positions.keySet()) {
+                    assertEquals(positions.get(guid), batch.find(guid).get());
+                }
+                for (String guid : removed) {
+                    assertFalse(batch.find(guid).isPresent());
+                }
+                String guid = UUID.randomUUID().toString();
+                assertFalse(batch.find(guid).isPresent());
+                positions.put(guid, batch.write(guid, new byte[10]));
+                assertEquals(positions.get(guid), batch.find(guid).get());
+                batch.close();
+            }
+        } finally {
+            batch.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.zudin.objectstore.impl;
+
+import org.junit.Test;
+import ru.zudin.objectstore.ObjectStoreExample;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class SortedObjectStoreTest extends AbstractFileSystemObjectStoreTest {
+    @Override
+    protected FileSystemObjectStore.BatchType getType() {
+        return FileSystemObjectStore.BatchType.SORTED;
+    }
+
+    @Test
+    public void test22SparseIndex() throws Exception {
+        FileSystemObjectStore.Builder builder = FileSystemObjectStore.builder(ObjectStoreExample.getOrCreatePath())
+                .batchType(getType())
+                .initBatchSize(2)
+                .fileSizeThreshold(1024 * 1024)
+                .indexType(FileSystemObjectStore.IndexType.SPARSE);
+        FileSystemObjectStore store = builder.build();
+        Map<String, String> guids = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        try {
+            store.deleteFiles();
+            for (int i = 0; i < 5000; i++) {
+                String value = "Find me without index " + i;
+                String guid = store.put(value);
+                if (i % 4 == 0) {
+                    removed.add(guid);
+                } else {
+                    guids.put(guid, value);
+                }
+            }
+            store.delete(removed);
+            assertEquals(0, store.getIndex().size());
+            for (String guid : guids.keySet()) {
+                assertEquals(guids.get(guid), store.get(guid).get());
+            }
+            for (String guid : removed) {
+                assertFalse(store.get(guid).isPresent());
+            }
+        } finally {
+            store.close();
+        }
+        FileSystemObjectStore reopened = builder.build();
+        try {
+            Map<String, Object> found = reopened.getAll(guids.keySet());
+            assertEquals(guids, found);
+            for (String guid : removed) {
+                assertFalse(reopened.get(guid).isPresent());
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+}
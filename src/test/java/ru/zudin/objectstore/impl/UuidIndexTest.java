@@ -0,0 +1,18 @@
+package ru.zudin.objectstore.impl;
+
+import ru.zudin.objectstore.Batch;
+
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * @author sergey
+ * @since 16.10.26
+ */
+public class UuidIndexTest extends AbstractIndexTest {
+
+    @Override
+    protected Index createIndex(ToIntFunction<Batch> idOf, IntFunction<Batch> batchOf) {
+        return new UuidIndex(idOf, batchOf);
+    }
+}